@@ -7,12 +7,17 @@ import android.content.Intent;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 
 import io.card.payment.CardIOActivity;
-import io.card.payment.CardScannerTester;
 import io.card.payment.CreditCard;
 
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
 import static com.lukekorth.deviceautomator.DeviceAutomator.onDevice;
 import static junit.framework.Assert.assertEquals;
 import static org.hamcrest.core.Is.is;
@@ -28,7 +33,7 @@ public class CardIOActivityTest {
 
     @Test(timeout = 30000)
     public void scansAmexCards() {
-        CardScannerTester.setCardAsset("amex.png");
+        CardIOTestActivity.setReplayPath(copyCardAsset("amex.png"));
 
         startScan();
 
@@ -37,6 +42,32 @@ public class CardIOActivityTest {
         assertEquals("3743 260055 74998", result.getFormattedCardNumber());
     }
 
+    /**
+     * The card images are test assets, which the app can't open by path, so copy them where it
+     * can.
+     */
+    private String copyCardAsset(String cardAssetName) {
+        File file = new File(getInstrumentation().getTargetContext().getCacheDir(), cardAssetName);
+        try {
+            InputStream in = getInstrumentation().getContext().getAssets()
+                    .open("test_card_images/" + cardAssetName);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return file.getPath();
+    }
+
     private void startScan() {
         mActivityTestRule.launchActivity(null);
         mActivity = mActivityTestRule.getActivity();
@@ -8,13 +8,23 @@ import io.card.payment.CardIOActivity;
 
 public class CardIOTestActivity extends Activity {
 
+    private static String sReplayPath;
+
+    /**
+     * Scan the recording at <code>path</code> instead of the camera: an image, a directory of
+     * images or an NV21 dump.
+     */
+    public static void setReplayPath(String path) {
+        sReplayPath = path;
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         Intent intent = new Intent(this, CardIOActivity.class)
                 .putExtra(CardIOActivity.EXTRA_SUPPRESS_CONFIRMATION, true)
-                .putExtra("io.card.payment.cameraBypassTestMode", true);
+                .putExtra("io.card.payment.replayPath", sReplayPath);
 
         startActivityForResult(intent, 1);
     }
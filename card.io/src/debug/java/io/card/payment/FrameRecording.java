@@ -0,0 +1,55 @@
+package io.card.payment;
+
+/* FrameRecording.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import java.io.IOException;
+
+/**
+ * A sequence of NV21 frames, with the time each was taken, for {@link ReplayFrameSource} to play
+ * back: {@link Nv21FileRecording}, {@link ImageSequenceRecording} or
+ * {@link SyntheticRecording}.
+ * <p/>
+ * Recordings are read by one thread at a time.
+ */
+interface FrameRecording {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Move to the next frame.
+     *
+     * @return <code>false</code> at the end of the recording.
+     */
+    boolean advance() throws IOException;
+
+    /**
+     * @return when the current frame was taken, in milliseconds since the first one.
+     */
+    long getTimestamp();
+
+    /**
+     * @return how long the recording lasts, in milliseconds: when a frame following the last one
+     * would have been taken. Looping recordings start over after this.
+     */
+    long getDuration();
+
+    /**
+     * Copy the current frame into <code>nv21</code>, which holds at least
+     * {@link DirectFramePool#frameSize(int, int)} bytes.
+     */
+    void read(byte[] nv21) throws IOException;
+
+    /**
+     * Go back to before the first frame.
+     */
+    void rewind() throws IOException;
+
+    /**
+     * Release whatever the recording holds open. Reading again reopens it.
+     */
+    void close();
+}
@@ -0,0 +1,150 @@
+package io.card.payment;
+
+/* ImageSequenceRecording.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A recording made of one still per frame, evenly spaced: NV21 dumps (<code>.nv21</code>, of
+ * which the first frame is used) or any image {@link BitmapFactory} can decode. Every frame is
+ * converted to NV21 up front, so playing the recording back costs nothing but a copy.
+ */
+class ImageSequenceRecording implements FrameRecording {
+    static final String NV21_SUFFIX = ".nv21";
+
+    private final int mWidth;
+    private final int mHeight;
+    private final long mFrameInterval;
+    private final byte[][] mFrames;
+
+    private int mIndex = -1;
+
+    /**
+     * @param files images at least <code>width</code> x <code>height</code>; larger ones are
+     *              scaled down.
+     */
+    ImageSequenceRecording(List<File> files, int width, int height, long frameIntervalMillis)
+            throws IOException {
+        if (files.isEmpty()) {
+            throw new IOException("no images");
+        }
+        mWidth = width;
+        mHeight = height;
+        mFrameInterval = frameIntervalMillis;
+        mFrames = new byte[files.size()][];
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = load(files.get(i), width, height);
+        }
+    }
+
+    private static byte[] load(File file, int width, int height) throws IOException {
+        byte[] nv21 = new byte[DirectFramePool.frameSize(width, height)];
+        if (file.getName().endsWith(NV21_SUFFIX)) {
+            Nv21FileRecording dump = new Nv21FileRecording(file, width, height, 0);
+            try {
+                dump.advance();
+                dump.read(nv21);
+            } finally {
+                dump.close();
+            }
+            return nv21;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            throw new IOException("can't decode " + file);
+        }
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+        int[] argb = new int[width * height];
+        bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        argbToNv21(argb, width, height, nv21);
+        return nv21;
+    }
+
+    /**
+     * Convert ARGB pixels, as returned by {@link Bitmap#getPixels}, to NV21 with the usual BT.601
+     * integer approximation. Chroma is taken from the top left pixel of each 2x2 block.
+     */
+    static void argbToNv21(int[] argb, int width, int height, byte[] nv21) {
+        int yIndex = 0;
+        int uvIndex = width * height;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int pixel = argb[j * width + i];
+                int r = (pixel >> 16) & 0xff;
+                int g = (pixel >> 8) & 0xff;
+                int b = pixel & 0xff;
+
+                int y = ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
+                nv21[yIndex++] = (byte) clamp(y);
+                // NV21 has a plane of Y and interleaved planes of VU each sampled by a factor of 2
+                // meaning for every 4 Y pixels there are 1 V and 1 U.
+                if (j % 2 == 0 && i % 2 == 0) {
+                    int u = ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
+                    int v = ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
+                    nv21[uvIndex++] = (byte) clamp(v);
+                    nv21[uvIndex++] = (byte) clamp(u);
+                }
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mIndex + 1 >= mFrames.length) {
+            return false;
+        }
+        mIndex++;
+        return true;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mIndex * mFrameInterval;
+    }
+
+    @Override
+    public long getDuration() {
+        return mFrames.length * mFrameInterval;
+    }
+
+    @Override
+    public void read(byte[] nv21) {
+        System.arraycopy(mFrames[mIndex], 0, nv21, 0, mFrames[mIndex].length);
+    }
+
+    @Override
+    public void rewind() {
+        mIndex = -1;
+    }
+
+    @Override
+    public void close() {
+    }
+}
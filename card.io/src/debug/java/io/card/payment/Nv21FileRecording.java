@@ -0,0 +1,147 @@
+package io.card.payment;
+
+/* Nv21FileRecording.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recording made of raw NV21 frames back to back in one file, e.g. a dump of the preview
+ * buffers. A single frame dump is a one frame recording.
+ * <p/>
+ * If there is a file next to it with the same name plus {@link #TIMESTAMPS_SUFFIX}, it holds the
+ * time each frame was taken, in milliseconds, one per line; frames are otherwise taken to be
+ * evenly spaced.
+ */
+class Nv21FileRecording implements FrameRecording {
+    static final String TIMESTAMPS_SUFFIX = ".timestamps";
+
+    private final File mFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+    private final int mNumFrames;
+    private final long mFrameInterval;
+    private final long[] mTimestamps;
+
+    private RandomAccessFile mIn;
+    private int mIndex = -1;
+
+    /**
+     * @param frameIntervalMillis time between frames, if the recording has no timestamps.
+     */
+    Nv21FileRecording(File file, int width, int height, long frameIntervalMillis)
+            throws IOException {
+        mFile = file;
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = DirectFramePool.frameSize(width, height);
+        mNumFrames = (int) (file.length() / mFrameSize);
+        if (mNumFrames == 0) {
+            throw new IOException(file + " doesn't hold a whole " + width + "x" + height
+                    + " NV21 frame");
+        }
+        mFrameInterval = frameIntervalMillis;
+        mTimestamps = readTimestamps(new File(file.getPath() + TIMESTAMPS_SUFFIX));
+    }
+
+    private static long[] readTimestamps(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        List<Long> timestamps = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    timestamps.add(Long.parseLong(line));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("bad timestamp in " + file + ": " + e.getMessage());
+        } finally {
+            in.close();
+        }
+        long[] result = new long[timestamps.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = timestamps.get(i) - timestamps.get(0);
+        }
+        return result;
+    }
+
+    int getNumFrames() {
+        return mNumFrames;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mIndex + 1 >= mNumFrames) {
+            return false;
+        }
+        mIndex++;
+        return true;
+    }
+
+    @Override
+    public long getTimestamp() {
+        if (mTimestamps != null && mIndex < mTimestamps.length) {
+            return mTimestamps[mIndex];
+        }
+        return mIndex * mFrameInterval;
+    }
+
+    @Override
+    public long getDuration() {
+        if (mTimestamps != null && mTimestamps.length == mNumFrames && mNumFrames > 1) {
+            // one more of the average interval
+            long last = mTimestamps[mNumFrames - 1];
+            return last + last / (mNumFrames - 1);
+        }
+        return mNumFrames * mFrameInterval;
+    }
+
+    @Override
+    public void read(byte[] nv21) throws IOException {
+        if (mIn == null) {
+            mIn = new RandomAccessFile(mFile, "r");
+        }
+        mIn.seek((long) mIndex * mFrameSize);
+        mIn.readFully(nv21, 0, mFrameSize);
+    }
+
+    @Override
+    public void rewind() {
+        mIndex = -1;
+    }
+
+    @Override
+    public void close() {
+        if (mIn != null) {
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                // nothing was written
+            }
+            mIn = null;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package io.card.payment;
+
+/* ReplayFrameSource.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link FrameSource} playing back a {@link FrameRecording} instead of a camera, for testing and
+ * benchmarking the scanner without one. Frames are delivered on a thread of their own, in their own
+ * buffers, so the scanner treats them exactly like camera frames. Nothing is drawn on the preview
+ * surface.
+ * <p/>
+ * Like the recordings, this is only part of debug builds; release code reaches it by reflection,
+ * through {@link #openLooping(String, int, int, long)}.
+ */
+class ReplayFrameSource implements FrameSource, Frame.Owner {
+    private static final String TAG = ReplayFrameSource.class.getSimpleName();
+
+    enum Pacing {
+        /**
+         * Each frame as soon as the listener released the previous one. No frame is ever dropped
+         * and the listener sets the pace, so runs are repeatable: for measuring throughput.
+         */
+        FULL_SPEED,
+        /**
+         * Each frame at the time it was recorded, like a camera. Frames falling due while the
+         * listener still holds every buffer are dropped.
+         */
+        RECORDED
+    }
+
+    // one waiting in the scanner's queue, one being scanned
+    private static final int NUM_FRAMES = 2;
+
+    private final FrameRecording mRecording;
+    private final Pacing mPacing;
+    private final boolean mLoop;
+    private final Frame[] mFrames = new Frame[NUM_FRAMES];
+    // guarded by this
+    private final boolean[] mInUse = new boolean[NUM_FRAMES];
+
+    private Listener mListener;
+    private Thread mPlaybackThread;
+    private boolean mTorchOn;
+
+    private volatile int mFramesDelivered;
+    private volatile int mFramesDropped;
+
+    /**
+     * @param loop start over at the end of the recording rather than stop delivering frames.
+     */
+    ReplayFrameSource(FrameRecording recording, Pacing pacing, boolean loop) {
+        mRecording = recording;
+        mPacing = pacing;
+        mLoop = loop;
+        int frameSize = DirectFramePool.frameSize(recording.getWidth(), recording.getHeight());
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            mFrames[i] = new Frame(this).setNv21(new byte[frameSize], recording.getWidth(),
+                    recording.getHeight());
+        }
+    }
+
+    /**
+     * Open a recording at <code>path</code>: a directory is an {@link ImageSequenceRecording} of
+     * the files in it, by name; a <code>.nv21</code> file is an {@link Nv21FileRecording}; any
+     * other file is a single image.
+     */
+    static FrameRecording openRecording(File path, int width, int height,
+                                        long frameIntervalMillis) throws IOException {
+        if (path.isDirectory()) {
+            File[] files = path.listFiles();
+            if (files == null) {
+                throw new IOException("can't list " + path);
+            }
+            Arrays.sort(files);
+            List<File> images = new ArrayList<>();
+            for (File file : files) {
+                if (file.isFile() && !file.getName().endsWith(Nv21FileRecording.TIMESTAMPS_SUFFIX)) {
+                    images.add(file);
+                }
+            }
+            return new ImageSequenceRecording(images, width, height, frameIntervalMillis);
+        }
+        if (path.getName().endsWith(ImageSequenceRecording.NV21_SUFFIX)) {
+            return new Nv21FileRecording(path, width, height, frameIntervalMillis);
+        }
+        List<File> image = new ArrayList<>();
+        image.add(path);
+        return new ImageSequenceRecording(image, width, height, frameIntervalMillis);
+    }
+
+    /**
+     * A source playing the recording at <code>path</code> (see
+     * {@link #openRecording(File, int, int, long)}) over and over, at its recorded pace, like a
+     * camera. Looked up by {@link CardIOActivity} by reflection, so keep the signature.
+     */
+    static FrameSource openLooping(String path, int width, int height, long frameIntervalMillis)
+            throws IOException {
+        return new ReplayFrameSource(openRecording(new File(path), width, height,
+                frameIntervalMillis), Pacing.RECORDED, true);
+    }
+
+    int getFramesDelivered() {
+        return mFramesDelivered;
+    }
+
+    /**
+     * @return how many frames fell due while the listener held every buffer; always 0 at
+     * {@link Pacing#FULL_SPEED}.
+     */
+    int getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    @Override
+    public boolean open(Listener listener, int displayRotation) {
+        mListener = listener;
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mListener != null;
+    }
+
+    @Override
+    public boolean startPreview(SurfaceHolder holder) {
+        if (mListener == null) {
+            return false;
+        }
+        if (mPlaybackThread == null) {
+            mPlaybackThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    play();
+                }
+            }, "card.io replay");
+            mPlaybackThread.start();
+        }
+        return true;
+    }
+
+    @Override
+    public void stopPreview() {
+        Thread thread = mPlaybackThread;
+        if (thread == null) {
+            return;
+        }
+        mPlaybackThread = null;
+        thread.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        stopPreview();
+        mListener = null;
+        mRecording.close();
+        try {
+            mRecording.rewind();
+        } catch (IOException e) {
+            Log.w(TAG, "can't rewind recording", e);
+        }
+        synchronized (this) {
+            Arrays.fill(mInUse, false);
+            notifyAll();
+        }
+    }
+
+    @Override
+    public boolean autoFocus() {
+        if (mListener == null) {
+            return false;
+        }
+        // a recording is as sharp as it is
+        mListener.onAutoFocus(true);
+        return true;
+    }
+
+    @Override
+    public boolean isTorchOn() {
+        return mTorchOn;
+    }
+
+    @Override
+    public boolean setTorchOn(boolean on) {
+        mTorchOn = on;
+        return true;
+    }
+
+    @Override
+    public synchronized void recycle(Frame frame) {
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            if (mFrames[i] == frame) {
+                mInUse[i] = false;
+            }
+        }
+        notifyAll();
+    }
+
+    private void play() {
+        Listener listener = mListener;
+        long origin = System.nanoTime();
+        // where the current pass over the recording starts, in ms from origin
+        long passStart = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (!mRecording.advance()) {
+                    if (!mLoop) {
+                        break;
+                    }
+                    mRecording.rewind();
+                    passStart += mRecording.getDuration();
+                    if (!mRecording.advance()) {
+                        break;
+                    }
+                }
+
+                Frame frame;
+                if (mPacing == Pacing.RECORDED) {
+                    long due = origin + (passStart + mRecording.getTimestamp()) * 1000000L;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    }
+                    frame = takeFreeFrame();
+                    if (frame == null) {
+                        mFramesDropped++;
+                        continue;
+                    }
+                } else {
+                    frame = awaitIdleFrame();
+                }
+
+                mRecording.read(frame.getData());
+                mFramesDelivered++;
+                listener.onFrame(frame);
+            }
+        } catch (InterruptedException e) {
+            // stopPreview()
+        } catch (IOException e) {
+            Log.e(TAG, "can't read recording, playback stopped", e);
+        }
+    }
+
+    private synchronized Frame takeFreeFrame() {
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            if (!mInUse[i]) {
+                mInUse[i] = true;
+                return mFrames[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait until the listener holds no frame at all. With at most one frame out at a time, the
+     * scanner's queue never overflows, so nothing is dropped whatever the timing.
+     */
+    private synchronized Frame awaitIdleFrame() throws InterruptedException {
+        while (true) {
+            boolean idle = true;
+            for (boolean inUse : mInUse) {
+                idle &= !inUse;
+            }
+            if (idle) {
+                break;
+            }
+            wait();
+        }
+        mInUse[0] = true;
+        return mFrames[0];
+    }
+}
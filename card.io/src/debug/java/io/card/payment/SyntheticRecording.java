@@ -0,0 +1,98 @@
+package io.card.payment;
+
+/* SyntheticRecording.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * A recording drawn on the fly: a plain, light card shape on a dark, slightly noisy background,
+ * shifting by a pixel or two from frame to frame like a hand-held card. There are no digits to
+ * read, but every frame goes through focus and edge detection, and the frames are the same on
+ * every run, which makes it a cheap, deterministic load for benchmarks.
+ */
+class SyntheticRecording implements FrameRecording {
+    private static final int BACKGROUND = 40;
+    private static final int CARD = 190;
+    private static final int NOISE = 8;
+    private static final int NEUTRAL_CHROMA = 128;
+    // fraction of the frame width the card covers
+    private static final float CARD_SCALE = 0.75f;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mNumFrames;
+    private final long mFrameInterval;
+
+    private int mIndex = -1;
+
+    SyntheticRecording(int width, int height, int numFrames, long frameIntervalMillis) {
+        mWidth = width;
+        mHeight = height;
+        mNumFrames = numFrames;
+        mFrameInterval = frameIntervalMillis;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mIndex + 1 >= mNumFrames) {
+            return false;
+        }
+        mIndex++;
+        return true;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mIndex * mFrameInterval;
+    }
+
+    @Override
+    public long getDuration() {
+        return mNumFrames * mFrameInterval;
+    }
+
+    @Override
+    public void read(byte[] nv21) {
+        int cardWidth = (int) (mWidth * CARD_SCALE);
+        int cardHeight = cardWidth * CardScanner.CREDIT_CARD_TARGET_HEIGHT
+                / CardScanner.CREDIT_CARD_TARGET_WIDTH;
+        int left = (mWidth - cardWidth) / 2 + (mIndex % 5) - 2;
+        int top = (mHeight - cardHeight) / 2 + (mIndex % 3) - 1;
+
+        // same noise for the same frame, every time
+        int seed = 0x9e3779b9 * (mIndex + 1);
+        int i = 0;
+        for (int y = 0; y < mHeight; y++) {
+            boolean cardRow = y >= top && y < top + cardHeight;
+            for (int x = 0; x < mWidth; x++) {
+                seed = seed * 1103515245 + 12345;
+                int noise = ((seed >>> 16) % (2 * NOISE + 1)) - NOISE;
+                boolean card = cardRow && x >= left && x < left + cardWidth;
+                nv21[i++] = (byte) ((card ? CARD : BACKGROUND) + noise);
+            }
+        }
+        int frameSize = DirectFramePool.frameSize(mWidth, mHeight);
+        for (; i < frameSize; i++) {
+            nv21[i] = (byte) NEUTRAL_CHROMA;
+        }
+    }
+
+    @Override
+    public void rewind() {
+        mIndex = -1;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,312 @@
+package io.card.payment;
+
+/* Camera1FrameSource.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.Size;
+import android.os.Build;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link FrameSource} on top of the Camera API, which delivers NV21 preview frames into a
+ * {@link PreviewBufferPool} on the main thread. Each buffer of the pool is wrapped in a
+ * {@link Frame} once, so frames are passed on without allocating.
+ */
+@SuppressWarnings("deprecation")
+class Camera1FrameSource implements FrameSource, Camera.PreviewCallback,
+        Camera.AutoFocusCallback, Frame.Owner {
+    private static final String TAG = Camera1FrameSource.class.getSimpleName();
+
+    private static final int CAMERA_CONNECT_TIMEOUT = 5000;
+    private static final int CAMERA_CONNECT_RETRY_INTERVAL = 50;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBufferCount;
+
+    private Camera mCamera;
+    // The camera's parameters as last written. Every change goes through this copy, so reading
+    // them doesn't cost a round trip to the camera service and a parse of the whole set.
+    private Camera.Parameters mParameters;
+    private boolean mTorchOn;
+    private Listener mListener;
+    private PreviewBufferPool mPreviewBufferPool;
+    // mFrames[i] wraps buffer i of mPreviewBufferPool
+    private Frame[] mFrames;
+
+    /**
+     * @param bufferCount how many preview buffers are cycled between the camera and the scanner.
+     */
+    Camera1FrameSource(int width, int height, int bufferCount) {
+        mWidth = width;
+        mHeight = height;
+        mBufferCount = bufferCount;
+    }
+
+    PreviewBufferPool getPreviewBufferPool() {
+        return mPreviewBufferPool;
+    }
+
+    /**
+     * Connect or reconnect to camera. If fails, sleeps and tries again. Returns <code>true</code> if successful,
+     * <code>false</code> if maxTimeout passes.
+     */
+    private static Camera connectToCamera(int checkInterval, int maxTimeout) {
+        long start = System.currentTimeMillis();
+        do {
+            try {
+                // Camera.open() will open the back-facing camera. Front cameras are not
+                // attempted.
+                return Camera.open();
+            } catch (RuntimeException e) {
+                try {
+                    Log.w(Util.PUBLIC_LOG_TAG,
+                            "Wasn't able to connect to camera service. Waiting and trying again...");
+                    Thread.sleep(checkInterval);
+                } catch (InterruptedException e1) {
+                    Log.e(Util.PUBLIC_LOG_TAG, "Interrupted while waiting for camera", e1);
+                }
+            } catch (Exception e) {
+                Log.e(Util.PUBLIC_LOG_TAG, "Unexpected exception. Please report it as a GitHub issue", e);
+                maxTimeout = 0;
+            }
+
+        } while (System.currentTimeMillis() - start < maxTimeout);
+
+        return null;
+    }
+
+    @Override
+    public boolean open(Listener listener, int displayRotation) {
+        if (mCamera != null) {
+            return true;
+        }
+        // The scanner calls this on a thread without a looper, so the camera's callbacks are
+        // still delivered on the main thread.
+        mCamera = connectToCamera(CAMERA_CONNECT_RETRY_INTERVAL, CAMERA_CONNECT_TIMEOUT);
+        if (mCamera == null) {
+            return false;
+        }
+        mListener = listener;
+
+        setCameraDisplayOrientation(mCamera, displayRotation);
+
+        Camera.Parameters parameters = mCamera.getParameters();
+
+        List<Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
+        if (supportedPreviewSizes != null) {
+            Size previewSize = null;
+            for (Size s : supportedPreviewSizes) {
+                if (s.width == 640 && s.height == 480) {
+                    previewSize = s;
+                    break;
+                }
+            }
+            if (previewSize == null) {
+                previewSize = supportedPreviewSizes.get(0);
+
+                previewSize.width = mWidth;
+                previewSize.height = mHeight;
+            }
+        }
+
+        parameters.setPreviewSize(mWidth, mHeight);
+        // the torch starts off, set in the same write so that mTorchOn is known to be right
+        List<String> flashModes = parameters.getSupportedFlashModes();
+        if (flashModes != null && flashModes.contains(Parameters.FLASH_MODE_OFF)) {
+            parameters.setFlashMode(Parameters.FLASH_MODE_OFF);
+        }
+
+        mCamera.setParameters(parameters);
+        mParameters = parameters;
+        mTorchOn = false;
+
+        if (mPreviewBufferPool == null) {
+            mPreviewBufferPool = new PreviewBufferPool(mWidth, mHeight,
+                    parameters.getPreviewFormat(), mBufferCount);
+            mFrames = new Frame[mPreviewBufferPool.getDepth()];
+            for (int i = 0; i < mFrames.length; i++) {
+                mFrames[i] = new Frame(this).setNv21(mPreviewBufferPool.getBuffer(i), mWidth,
+                        mHeight);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mCamera != null;
+    }
+
+    @Override
+    public boolean startPreview(SurfaceHolder holder) {
+        if (mCamera == null) {
+            return false;
+        }
+        mPreviewBufferPool.attach(mCamera);
+        mCamera.setPreviewCallbackWithBuffer(this);
+        try {
+            mCamera.setPreviewDisplay(holder);
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            mCamera.startPreview();
+            mCamera.autoFocus(this);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void stopPreview() {
+        if (mCamera != null) {
+            try {
+                mCamera.stopPreview();
+            } catch (Exception e) {
+                Log.e(Util.PUBLIC_LOG_TAG, "error stopping camera", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Because the Camera object is a shared resource, it's very
+        // important to release it when the activity is paused.
+        if (mCamera != null) {
+            try {
+                mCamera.stopPreview();
+                mCamera.setPreviewDisplay(null);
+            } catch (IOException e) {
+                Log.w(Util.PUBLIC_LOG_TAG, "can't stop preview display", e);
+            }
+            mCamera.setPreviewCallback(null);
+            mCamera.release();
+            mCamera = null;
+            mParameters = null;
+            mTorchOn = false;
+        }
+        if (mPreviewBufferPool != null) {
+            // the buffers are kept and registered with the next camera on open
+            mPreviewBufferPool.detach();
+        }
+    }
+
+    /**
+     * Hands each preview frame to the listener.
+     * <p/>
+     * This method is called by Android, never directly by application code.
+     */
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) {
+            return;
+        }
+        Frame frame;
+        int index = mPreviewBufferPool.indexOf(data);
+        if (index >= 0) {
+            mPreviewBufferPool.onFrameDelivered(data);
+            frame = mFrames[index];
+        } else {
+            // not one of ours; shouldn't happen
+            frame = new Frame(this).setNv21(data, mWidth, mHeight);
+        }
+        mListener.onFrame(frame);
+    }
+
+    /**
+     * Give a preview buffer back to the camera so it can be filled again. Called on the thread that
+     * was done with it; the camera is only released once nothing reads the frames any more.
+     */
+    @Override
+    public void recycle(Frame frame) {
+        byte[] data = frame.getData();
+        PreviewBufferPool pool = mPreviewBufferPool;
+        if (pool == null || !pool.recycle(mCamera, data)) {
+            if (mCamera != null) {
+                mCamera.addCallbackBuffer(data);
+            }
+        }
+    }
+
+    @Override
+    public boolean autoFocus() {
+        if (mCamera == null) {
+            return false;
+        }
+        try {
+            mCamera.autoFocus(this);
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "could not trigger auto focus: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Invoked when autoFocus is complete
+     * <p/>
+     * This method is called by Android, never directly by application code.
+     */
+    @Override
+    public void onAutoFocus(boolean success, Camera camera) {
+        mListener.onAutoFocus(success);
+    }
+
+    @Override
+    public boolean isTorchOn() {
+        return mCamera != null && mTorchOn;
+    }
+
+    @Override
+    public boolean setTorchOn(boolean on) {
+        if (mCamera == null) {
+            return false;
+        }
+        if (on == mTorchOn) {
+            return true;
+        }
+        try {
+            mParameters.setFlashMode(on ? Parameters.FLASH_MODE_TORCH : Parameters.FLASH_MODE_OFF);
+            mCamera.setParameters(mParameters);
+            mTorchOn = on;
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not set flash mode: " + e);
+            // the copy now holds a mode the camera refused; start over from what it has
+            try {
+                mParameters = mCamera.getParameters();
+            } catch (RuntimeException e1) {
+                Log.w(TAG, "Could not read camera parameters: " + e1);
+            }
+        }
+        return false;
+    }
+
+    private static void setCameraDisplayOrientation(Camera camera, int displayRotation) {
+        int result;
+
+        /* check API level. If upper API level 21, re-calculate orientation. */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            android.hardware.Camera.CameraInfo info =
+                    new android.hardware.Camera.CameraInfo();
+            android.hardware.Camera.getCameraInfo(0, info);
+            int cameraOrientation = info.orientation;
+            result = (cameraOrientation - displayRotation + 360) % 360;
+        } else {
+            /* if API level is lower than 21, use the default value */
+            result = 90;
+        }
+
+        /*set display orientation*/
+        camera.setDisplayOrientation(result);
+    }
+}
@@ -0,0 +1,498 @@
+package io.card.payment;
+
+/* Camera2FrameSource.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FrameSource} on top of Camera2. Frames stream as <code>YUV_420_888</code> through an
+ * {@link ImageReader}, and the planes of each {@link Image} go to the recognizer as they are, in
+ * their direct buffers and with their strides: the pixels are never copied onto the Java heap.
+ * <p/>
+ * Only used on devices whose Camera2 support is better than <code>LEGACY</code> and that stream
+ * <code>YUV_420_888</code> at the scanner's size, which {@link #isSupported(Context, int, int)}
+ * checks. LEGACY devices implement Camera2 on top of the Camera API, converting every frame, so
+ * {@link Camera1FrameSource} is the better choice there.
+ * <p/>
+ * Losing the camera, or failing to configure the preview, is reported to
+ * {@link FrameSource.Listener#onCameraError()}; the source then acts as closed until it is opened
+ * again.
+ * <p/>
+ * The camera and the reader call back on a dedicated thread, which is also where frames are
+ * delivered to the listener. Each frame holds on to its image until it is released.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2FrameSource implements FrameSource, ImageReader.OnImageAvailableListener,
+        Frame.Owner {
+    private static final String TAG = Camera2FrameSource.class.getSimpleName();
+
+    private static final int CAMERA_OPEN_TIMEOUT = 5000;
+
+    // one image queued for the scanner and one being scanned, one on its way to the listener, and
+    // the one acquireLatestImage() needs free to skip ahead
+    private static final int MAX_IMAGES = 4;
+
+    private final CameraManager mManager;
+    private final int mWidth;
+    private final int mHeight;
+    // frames on loan to the listener have a tag: their image
+    private final Frame[] mFrames;
+
+    private Listener mListener;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private CameraDevice mCamera;
+    private boolean mHasFlash;
+    private ImageReader mReader;
+    private CameraCaptureSession mSession;
+    private CaptureRequest.Builder mRequest;
+    private boolean mTorchOn;
+    private boolean mFocusPending;
+
+    Camera2FrameSource(Context context, int width, int height) {
+        mManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mWidth = width;
+        mHeight = height;
+        mFrames = new Frame[MAX_IMAGES - 1];
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = new Frame(this);
+        }
+    }
+
+    /**
+     * @return whether the back camera can be used through Camera2 without going through the
+     * Camera API underneath, and streams <code>YUV_420_888</code> frames of
+     * <code>width</code>x<code>height</code>.
+     */
+    static boolean isSupported(Context context, int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String id = backCameraId(manager);
+            if (id == null) {
+                return false;
+            }
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+            Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            if (level == null
+                    || level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+                return false;
+            }
+            StreamConfigurationMap map =
+                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Size[] sizes = map == null ? null : map.getOutputSizes(ImageFormat.YUV_420_888);
+            if (sizes != null) {
+                for (Size size : sizes) {
+                    if (size.getWidth() == width && size.getHeight() == height) {
+                        return true;
+                    }
+                }
+            }
+            Log.i(TAG, "no " + width + "x" + height + " YUV_420_888 stream");
+            return false;
+        } catch (CameraAccessException | RuntimeException e) {
+            Log.w(TAG, "can't query cameras: " + e);
+            return false;
+        }
+    }
+
+    private static String backCameraId(CameraManager manager) throws CameraAccessException {
+        for (String id : manager.getCameraIdList()) {
+            Integer facing = manager.getCameraCharacteristics(id)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean open(Listener listener, int displayRotation) {
+        if (isOpen()) {
+            return true;
+        }
+        mListener = listener;
+        mThread = new HandlerThread("card.io camera");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        final CountDownLatch opened = new CountDownLatch(1);
+        try {
+            String id = backCameraId(mManager);
+            if (id == null) {
+                Log.e(Util.PUBLIC_LOG_TAG, "no back-facing camera");
+                close();
+                return false;
+            }
+            Boolean hasFlash = mManager.getCameraCharacteristics(id)
+                    .get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            mHasFlash = hasFlash != null && hasFlash;
+
+            mManager.openCamera(id, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice camera) {
+                    synchronized (Camera2FrameSource.this) {
+                        if (mThread == null) {
+                            // gave up waiting
+                            camera.close();
+                        } else {
+                            mCamera = camera;
+                        }
+                    }
+                    opened.countDown();
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice camera) {
+                    Log.w(Util.PUBLIC_LOG_TAG, "camera disconnected");
+                    onCameraLost(camera);
+                    opened.countDown();
+                }
+
+                @Override
+                public void onError(CameraDevice camera, int error) {
+                    Log.e(Util.PUBLIC_LOG_TAG, "camera error " + error);
+                    onCameraLost(camera);
+                    opened.countDown();
+                }
+            }, mHandler);
+
+            if (!opened.await(CAMERA_OPEN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.e(Util.PUBLIC_LOG_TAG, "timed out opening the camera");
+            }
+        } catch (CameraAccessException | SecurityException e) {
+            Log.e(Util.PUBLIC_LOG_TAG, "can't open the camera", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (mCamera != null) {
+                mReader = ImageReader.newInstance(mWidth, mHeight, ImageFormat.YUV_420_888,
+                        MAX_IMAGES);
+                mReader.setOnImageAvailableListener(this, mHandler);
+                return true;
+            }
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * The camera went away, while opening or afterwards. Forget it, so that nothing reaches the
+     * closed device, and tell the listener if it was in use.
+     */
+    private void onCameraLost(CameraDevice camera) {
+        boolean inUse;
+        Listener listener;
+        synchronized (this) {
+            inUse = mCamera == camera;
+            if (inUse) {
+                mCamera = null;
+                mSession = null;
+                mRequest = null;
+                mFocusPending = false;
+            }
+            listener = mListener;
+        }
+        camera.close();
+        if (inUse && listener != null) {
+            listener.onCameraError();
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mCamera != null;
+    }
+
+    @Override
+    public boolean startPreview(SurfaceHolder holder) {
+        synchronized (this) {
+            if (mCamera == null) {
+                return false;
+            }
+            // the preview stream gets the size of the surface's buffers
+            holder.setFixedSize(mWidth, mHeight);
+            Surface preview = holder.getSurface();
+            try {
+                mRequest = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                mRequest.addTarget(preview);
+                mRequest.addTarget(mReader.getSurface());
+                mRequest.set(CaptureRequest.CONTROL_AF_MODE,
+                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                setTorchMode(mTorchOn);
+                mCamera.createCaptureSession(Arrays.asList(preview, mReader.getSurface()),
+                        new CameraCaptureSession.StateCallback() {
+                            @Override
+                            public void onConfigured(CameraCaptureSession session) {
+                                onSessionConfigured(session);
+                            }
+
+                            @Override
+                            public void onConfigureFailed(CameraCaptureSession session) {
+                                Log.e(Util.PUBLIC_LOG_TAG, "couldn't configure the camera");
+                                onSessionFailed(session);
+                            }
+                        }, mHandler);
+                return true;
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.e(Util.PUBLIC_LOG_TAG, "can't start the preview", e);
+                return false;
+            }
+        }
+    }
+
+    private void onSessionFailed(CameraCaptureSession session) {
+        Listener listener;
+        synchronized (this) {
+            if (mCamera == null || mRequest == null) {
+                // stopped meanwhile
+                return;
+            }
+            mRequest = null;
+            listener = mListener;
+        }
+        session.close();
+        listener.onCameraError();
+    }
+
+    private synchronized void onSessionConfigured(CameraCaptureSession session) {
+        if (mCamera == null || mRequest == null) {
+            // stopped meanwhile
+            session.close();
+            return;
+        }
+        mSession = session;
+        updatePreview();
+    }
+
+    /**
+     * Apply changes to mRequest to the preview.
+     */
+    private boolean updatePreview() {
+        if (mSession == null) {
+            return false;
+        }
+        try {
+            mSession.setRepeatingRequest(mRequest.build(), mCaptureCallback, mHandler);
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "can't update the preview: " + e);
+            return false;
+        }
+    }
+
+    @Override
+    public void stopPreview() {
+        CameraCaptureSession session;
+        synchronized (this) {
+            session = mSession;
+            mSession = null;
+            mRequest = null;
+            mFocusPending = false;
+        }
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        stopPreview();
+        CameraDevice camera;
+        ImageReader reader;
+        HandlerThread thread;
+        synchronized (this) {
+            camera = mCamera;
+            reader = mReader;
+            thread = mThread;
+            mCamera = null;
+            mReader = null;
+            mThread = null;
+            mHandler = null;
+            // closing the reader closes every image, including those of frames never released
+            for (Frame frame : mFrames) {
+                frame.clear();
+                frame.setTag(null);
+            }
+        }
+        if (camera != null) {
+            camera.close();
+        }
+        if (reader != null) {
+            reader.close();
+        }
+        if (thread != null) {
+            thread.quitSafely();
+        }
+    }
+
+    /**
+     * Hands the latest image to the listener, skipping any that arrived before it.
+     * <p/>
+     * This method is called by Android, never directly by application code.
+     */
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Frame frame;
+        Image image;
+        synchronized (this) {
+            if (reader != mReader) {
+                return;
+            }
+            frame = freeFrame();
+            if (frame == null) {
+                // the listener has every frame; leave the image for when one comes back
+                return;
+            }
+            try {
+                image = reader.acquireLatestImage();
+            } catch (IllegalStateException e) {
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            Image.Plane[] planes = image.getPlanes();
+            frame.setPlanes(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(),
+                    planes[1].getPixelStride(), image.getWidth(), image.getHeight());
+            frame.setTag(image);
+        }
+        mListener.onFrame(frame);
+    }
+
+    private Frame freeFrame() {
+        for (Frame frame : mFrames) {
+            if (frame.getTag() == null) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the image of a frame the listener is done with.
+     */
+    @Override
+    public void recycle(Frame frame) {
+        Image image;
+        synchronized (this) {
+            image = (Image) frame.getTag();
+            if (image == null) {
+                // already taken back by close()
+                return;
+            }
+            frame.clear();
+            frame.setTag(null);
+            image.close();
+        }
+    }
+
+    @Override
+    public synchronized boolean autoFocus() {
+        if (mSession == null || mFocusPending) {
+            return false;
+        }
+        try {
+            // the result of the repeating request tells when focus has settled
+            mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_START);
+            mSession.capture(mRequest.build(), null, mHandler);
+            mFocusPending = true;
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "could not trigger auto focus: " + e);
+            return false;
+        } finally {
+            mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+        }
+    }
+
+    private final CameraCaptureSession.CaptureCallback mCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession session,
+                                               CaptureRequest request, TotalCaptureResult result) {
+                    Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+                    boolean focused;
+                    synchronized (Camera2FrameSource.this) {
+                        if (!mFocusPending || state == null
+                                || (state != CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                                && state != CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED)) {
+                            return;
+                        }
+                        mFocusPending = false;
+                        focused = state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+                        // unlock, so continuous focus carries on
+                        try {
+                            mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                                    CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+                            mSession.capture(mRequest.build(), null, mHandler);
+                        } catch (CameraAccessException | IllegalStateException e) {
+                            Log.w(TAG, "could not resume continuous focus: " + e);
+                        } finally {
+                            mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                                    CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+                        }
+                    }
+                    mListener.onAutoFocus(focused);
+                }
+            };
+
+    @Override
+    public synchronized boolean isTorchOn() {
+        return mTorchOn;
+    }
+
+    @Override
+    public synchronized boolean setTorchOn(boolean on) {
+        if (mCamera == null || !mHasFlash) {
+            return false;
+        }
+        if (on == mTorchOn) {
+            return true;
+        }
+        mTorchOn = on;
+        if (mRequest == null) {
+            // applied when the preview starts
+            return true;
+        }
+        setTorchMode(on);
+        return updatePreview();
+    }
+
+    private void setTorchMode(boolean on) {
+        mRequest.set(CaptureRequest.FLASH_MODE,
+                on ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF);
+    }
+}
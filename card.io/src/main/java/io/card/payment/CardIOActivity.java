@@ -21,6 +21,7 @@ import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Vibrator;
 import android.util.Log;
 import android.view.Gravity;
@@ -40,8 +41,12 @@ import android.widget.RelativeLayout;
 import android.widget.Toast;
 
 import java.io.ByteArrayInputStream;
-import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
 import java.util.Date;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import io.card.payment.i18n.LocalizedStrings;
 import io.card.payment.i18n.StringKey;
@@ -82,6 +87,14 @@ public final class CardIOActivity extends Activity {
      */
     public static final String EXTRA_UNBLUR_DIGITS = "io.card.payment.unblurDigits";
 
+    /**
+     * Boolean extra. Optional. Defaults to <code>false</code>. Experimental. If set, frames that look
+     * just like the last one the recognizer read (e.g. while the phone lies still) are not read
+     * again, except for every third one in a row. Saves work on slow devices; counted in
+     * {@link ScanAnalytics}.
+     */
+    public static final String EXTRA_SKIP_SIMILAR_FRAMES = "io.card.payment.skipSimilarFrames";
+
     /**
      * Boolean extra. Optional. Defaults to <code>false</code>. If set, the user will be prompted
      * for the card CVV.
@@ -201,6 +214,12 @@ public final class CardIOActivity extends Activity {
      */
     public static final String EXTRA_RETURN_CARD_IMAGE = "io.card.payment.returnCardImage";
 
+    /**
+     * {@link ScanAnalytics} extra. Whenever a card was scanned, the data intent passed to your
+     * {@link android.app.Activity} has timings and frame statistics of the scan in this extra.
+     */
+    public static final String EXTRA_SCAN_ANALYTICS = "io.card.payment.scanAnalytics";
+
     /**
      * Integer extra. Optional. If this value is provided the view will be inflated and will overlay
      * the camera during the scan process. The integer value must be the id of a valid layout
@@ -222,9 +241,14 @@ public final class CardIOActivity extends Activity {
 
 
     /**
-     * Boolean extra. Used for testing only.
+     * String extra. Used for testing only, and only in debug builds. Path of a recording to scan
+     * instead of the camera: an image, a directory of images or an NV21 dump (see
+     * <code>ReplayFrameSource</code>).
      */
-    static final String PRIVATE_EXTRA_CAMERA_BYPASS_TEST_MODE = "io.card.payment.cameraBypassTestMode";
+    static final String PRIVATE_EXTRA_REPLAY_PATH = "io.card.payment.replayPath";
+
+    // how often a replayed recording without timestamps delivers a frame, like a 30 fps camera
+    private static final long REPLAY_FRAME_INTERVAL = 1000 / 30;
 
     private static int lastResult = 0xca8d10; // arbitrary. chosen to be well above
     // Activity.RESULT_FIRST_USER.
@@ -244,7 +268,7 @@ public final class CardIOActivity extends Activity {
      * {@link #EXTRA_SUPPRESS_MANUAL_ENTRY} is set and scanning is not available.
      * <br><br>
      * This error can be avoided in normal situations by checking
-     * {@link #canReadCardWithCamera()}.
+     * {@link #canReadCardWithCamera(Context)}.
      */
     public static final int RESULT_SCAN_NOT_AVAILABLE = lastResult++;
 
@@ -282,6 +306,20 @@ public final class CardIOActivity extends Activity {
     private static final int DATA_ENTRY_REQUEST_ID = 10;
     private static final int PERMISSION_REQUEST_ID = 11;
 
+    // runs checkCanReadCardWithCamera() probes one after the other, so that those queued behind
+    // the first are answered from its result; the thread goes away when idle
+    private static final ThreadPoolExecutor sPreflightExecutor = new ThreadPoolExecutor(1, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "card.io preflight");
+                }
+            });
+
+    static {
+        sPreflightExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private OverlayView mOverlay;
     private OrientationEventListener orientationListener;
 
@@ -289,6 +327,7 @@ public final class CardIOActivity extends Activity {
     Preview mPreview;
 
     private CreditCard mDetectedCard;
+    private ScanAnalytics mScanAnalytics;
     private Rect mGuideFrame;
     private int mLastDegrees;
     private int mFrameOrientation;
@@ -413,7 +452,7 @@ public final class CardIOActivity extends Activity {
 
     private void checkCamera() {
         try {
-            if (!Util.hardwareSupported()) {
+            if (!Util.hardwareSupported(this)) {
                 StringKey errorKey = StringKey.ERROR_NO_DEVICE_SUPPORT;
                 String localizedError = LocalizedStrings.getString(errorKey);
                 Log.w(Util.PUBLIC_LOG_TAG, errorKey + ": " + localizedError);
@@ -450,17 +489,20 @@ public final class CardIOActivity extends Activity {
 
             mFrameOrientation = ORIENTATION_PORTRAIT;
 
-            if (getIntent().getBooleanExtra(PRIVATE_EXTRA_CAMERA_BYPASS_TEST_MODE, false)) {
+            String replayPath = getIntent().getStringExtra(PRIVATE_EXTRA_REPLAY_PATH);
+            if (replayPath != null) {
                 if (!this.getPackageName().contentEquals("io.card.development")) {
                     throw new IllegalStateException("Illegal access of private extra");
                 }
-                // use reflection here so that the tester can be safely stripped for release
-                // builds.
-                Class<?> testScannerClass = Class.forName("io.card.payment.CardScannerTester");
-                Constructor<?> cons = testScannerClass.getConstructor(this.getClass(),
-                        Integer.TYPE);
-                mCardScanner = (CardScanner) cons.newInstance(new Object[] { this,
-                        mFrameOrientation });
+                // use reflection here so that the replay source, which is only in debug builds,
+                // is stripped for release builds.
+                Class<?> replayClass = Class.forName("io.card.payment.ReplayFrameSource");
+                Method openLooping = replayClass.getDeclaredMethod("openLooping", String.class,
+                        Integer.TYPE, Integer.TYPE, Long.TYPE);
+                FrameSource source = (FrameSource) openLooping.invoke(null, replayPath,
+                        CardScanner.PREVIEW_WIDTH, CardScanner.PREVIEW_HEIGHT,
+                        REPLAY_FRAME_INTERVAL);
+                mCardScanner = new CardScanner(this, mFrameOrientation, source);
             } else {
                 mCardScanner = new CardScanner(this, mFrameOrientation);
             }
@@ -672,8 +714,16 @@ public final class CardIOActivity extends Activity {
      * An ARM7 processor and Android SDK 8 or later are required. Additional checks for specific
      * misbehaving devices may also be added.
      *
+     * <br><br>
+     * The first check in a process may open the camera, which blocks the calling thread.
+     *
      * @return <code>true</code> if camera is supported. <code>false</code> otherwise.
+     * @deprecated Without a context, the answer remembered across launches can only be read once
+     * card.io has been given a context in this process, so this may open the camera on the calling
+     * thread every time the app starts. Use {@link #canReadCardWithCamera(Context)} or
+     * {@link #checkCanReadCardWithCamera(Context, CanReadCardCallback)}.
      */
+    @Deprecated
     public static boolean canReadCardWithCamera() {
         try {
             return Util.hardwareSupported();
@@ -685,6 +735,70 @@ public final class CardIOActivity extends Activity {
         }
     }
 
+    /**
+     * Determine if the device supports card scanning, like {@link #canReadCardWithCamera()}. The
+     * answer is remembered across launches until the OS or card.io is updated, so the camera is
+     * opened at most once per build, but that once blocks the calling thread; use
+     * {@link #checkCanReadCardWithCamera(Context, CanReadCardCallback)} to check on a background
+     * thread instead.
+     * <br><br>
+     * Before the app has been granted the camera permission, scanning is assumed to be supported
+     * and the camera is not opened.
+     *
+     * @param context any context of the app.
+     * @return <code>true</code> if camera is supported. <code>false</code> otherwise.
+     */
+    public static boolean canReadCardWithCamera(Context context) {
+        try {
+            return Util.hardwareSupported(context);
+        } catch (CameraUnavailableException e) {
+            return false;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "RuntimeException accessing Util.hardwareSupported()");
+            return false;
+        }
+    }
+
+    /**
+     * Receives the result of {@link #checkCanReadCardWithCamera(Context, CanReadCardCallback)}.
+     */
+    public interface CanReadCardCallback {
+        /**
+         * Called on the main thread.
+         *
+         * @param canReadCard what {@link #canReadCardWithCamera(Context)} returns.
+         */
+        void onCanReadCardResult(boolean canReadCard);
+    }
+
+    /**
+     * Determine if the device supports card scanning, like
+     * {@link #canReadCardWithCamera(Context)}, on a background thread. The answer is remembered
+     * across launches until the OS or card.io is updated, so the camera is opened at most once per
+     * build; afterwards this is cheap enough to call whenever the app starts. Later calls to
+     * {@link #canReadCardWithCamera(Context)} in the same process then return at once.
+     *
+     * @param context  any context of the app.
+     * @param callback receives the result on the main thread.
+     */
+    public static void checkCanReadCardWithCamera(Context context,
+                                                  final CanReadCardCallback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        sPreflightExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean result = canReadCardWithCamera(appContext);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCanReadCardResult(result);
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Returns the String version of this SDK.  Please include the return value of this method in any support requests.
      *
@@ -733,6 +847,13 @@ public final class CardIOActivity extends Activity {
         onEdgeUpdate(new DetectionInfo());
     }
 
+    // Called by CardScanner when the camera it started opening in resumeScanning() can't be opened
+    void onCameraOpenFailed() {
+        StringKey error = StringKey.ERROR_CAMERA_UNEXPECTED_FAIL;
+        showErrorMessage(LocalizedStrings.getString(error));
+        nextActivity();
+    }
+
     void onEdgeUpdate(DetectionInfo dInfo) {
         mOverlay.setDetectionInfo(dInfo);
     }
@@ -749,6 +870,7 @@ public final class CardIOActivity extends Activity {
         }
 
         mCardScanner.pauseScanning();
+        mScanAnalytics = mCardScanner.getAnalytics();
         mUIBar.setVisibility(View.INVISIBLE);
 
         if (dInfo.predicted()) {
@@ -774,6 +896,7 @@ public final class CardIOActivity extends Activity {
         if (mDetectOnly) {
             Intent dataIntent = new Intent();
             Util.writeCapturedCardImageIfNecessary(getIntent(), dataIntent, mOverlay);
+            dataIntent.putExtra(EXTRA_SCAN_ANALYTICS, mScanAnalytics);
 
             setResultAndFinish(RESULT_SCAN_SUPPRESSED, dataIntent);
         } else {
@@ -791,6 +914,7 @@ public final class CardIOActivity extends Activity {
             }
 
             Util.writeCapturedCardImageIfNecessary(origIntent, dataIntent, mOverlay);
+            dataIntent.putExtra(EXTRA_SCAN_ANALYTICS, mScanAnalytics);
 
             setResultAndFinish(RESULT_CONFIRMATION_SUPPRESSED, dataIntent);
         } else {
@@ -812,6 +936,7 @@ public final class CardIOActivity extends Activity {
                     }
                     if (mDetectedCard != null) {
                         dataIntent.putExtra(EXTRA_SCAN_RESULT, mDetectedCard);
+                        dataIntent.putExtra(EXTRA_SCAN_ANALYTICS, mScanAnalytics);
                         mDetectedCard = null;
                     } else {
                         /*
@@ -0,0 +1,741 @@
+package io.card.payment;
+
+/* CardImageScanner.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the card.io recognizer over still images and recorded NV21 frames, without an Activity,
+ * camera or preview surface.
+ * <p/>
+ * Input is brought into the same shape as a camera preview frame (640x480 NV21, card horizontal)
+ * and handed to the same native code {@link CardIOActivity} uses. The recognizer only reports a
+ * card once several frames agree, so a still image is submitted repeatedly (up to
+ * {@link #MAX_STILL_IMAGE_PASSES} times) until the scan completes. A frame dump is scanned frame
+ * by frame, as if it came from the camera, until the scan completes or the dump ends.
+ * <p/>
+ * Each worker thread owns its own native recognizer, so a batch scan ({@link #scanFiles(List)},
+ * {@link #scanBitmaps(List)}) runs one image per core in parallel. The single image methods may
+ * be called from any thread, including concurrently. Call {@link #close()} when done to release
+ * the native recognizers.
+ * <p/>
+ * Example:
+ * <pre>
+ * if (CardImageScanner.isSupported()) {
+ *     CardImageScanner scanner = new CardImageScanner();
+ *     try {
+ *         for (CardImageScanner.Result result : scanner.scanFiles(captures)) {
+ *             if (result.getCreditCard() != null) { ... }
+ *         }
+ *     } finally {
+ *         scanner.close();
+ *     }
+ * }
+ * </pre>
+ */
+public class CardImageScanner implements Closeable {
+    /**
+     * Width of the frames the recognizer works on.
+     */
+    public static final int FRAME_WIDTH = 640;
+
+    /**
+     * Height of the frames the recognizer works on.
+     */
+    public static final int FRAME_HEIGHT = 480;
+
+    /**
+     * Maximum number of times a single still image is run through the recognizer.
+     */
+    public static final int MAX_STILL_IMAGE_PASSES = 20;
+
+    /**
+     * File extensions that are read as raw NV21 frame dumps rather than decoded as images.
+     */
+    private static final String[] FRAME_DUMP_EXTENSIONS = { ".nv21", ".yuv" };
+
+    private static final int NO_UNBLUR = -1;
+
+    /**
+     * Result of scanning one image or frame dump.
+     */
+    public static final class Result {
+        private final CreditCard mCreditCard;
+        private final float mConfidence;
+        private final boolean mCardDetected;
+        private final float mFocusScore;
+        private final int mFramesScanned;
+        private final String mError;
+
+        Result(CreditCard creditCard, float confidence, boolean cardDetected, float focusScore,
+               int framesScanned, String error) {
+            mCreditCard = creditCard;
+            mConfidence = confidence;
+            mCardDetected = cardDetected;
+            mFocusScore = focusScore;
+            mFramesScanned = framesScanned;
+            mError = error;
+        }
+
+        static Result error(String error) {
+            return new Result(null, 0, false, 0, 0, error);
+        }
+
+        /**
+         * @return the recognized card, or <code>null</code> if no card number was read.
+         */
+        public CreditCard getCreditCard() {
+            return mCreditCard;
+        }
+
+        /**
+         * How sharp the frame the card number was read from was, from 0 to 1: its focus score
+         * divided by twice the minimum the scanner accepts, capped at 1. 0 if no number was
+         * read.
+         * <p/>
+         * This is the sharpness the recognizer itself uses to choose between frames. It is not the
+         * probability that the number is right: the recognizer only reports a number once its
+         * predictions agree across several frames, and gives no score beyond that.
+         */
+        public float getConfidence() {
+            return mConfidence;
+        }
+
+        /**
+         * @return true if all four card edges were found in the last frame scanned.
+         */
+        public boolean isCardDetected() {
+            return mCardDetected;
+        }
+
+        /**
+         * @return the focus score of the last frame scanned.
+         */
+        public float getFocusScore() {
+            return mFocusScore;
+        }
+
+        /**
+         * @return the number of frames the recognizer looked at.
+         */
+        public int getFramesScanned() {
+            return mFramesScanned;
+        }
+
+        /**
+         * @return why the input could not be scanned, or <code>null</code> if it was.
+         */
+        public String getError() {
+            return mError;
+        }
+    }
+
+    /**
+     * One native recognizer plus the scratch memory to feed it. Only ever used by one thread at a
+     * time.
+     */
+    private static final class Lane {
+        final long nativeHandle;
+        final ScanResultBuffer result = new ScanResultBuffer();
+        final DetectionInfo info = new DetectionInfo();
+        final byte[] nv21 = new byte[DirectFramePool.frameSize(FRAME_WIDTH, FRAME_HEIGHT)];
+        final ByteBuffer directFrame;
+        final int[] argb = new int[FRAME_WIDTH * FRAME_HEIGHT];
+        final Bitmap frameBitmap = Bitmap.createBitmap(FRAME_WIDTH, FRAME_HEIGHT,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(frameBitmap);
+        final Matrix matrix = new Matrix();
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        Lane(ByteBuffer directFrame) {
+            this.directFrame = directFrame;
+            long handle;
+            try {
+                handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, NO_UNBLUR);
+            } catch (RuntimeException | Error e) {
+                frameBitmap.recycle();
+                throw e;
+            }
+            nativeHandle = handle;
+        }
+
+        void free(DirectFramePool directFrames) {
+            NativeRecognizer.nCleanup(nativeHandle);
+            directFrames.release(directFrame);
+            frameBitmap.recycle();
+        }
+    }
+
+    private final int mThreadCount;
+    private final BlockingQueue<Lane> mLanes;
+    private final DirectFramePool mDirectFrames;
+    private final ExecutorService mExecutor;
+    private volatile boolean mScanExpiry = true;
+    // guarded by this
+    private boolean mClosed;
+    // scans and batches in progress; close() frees the lanes only once there are none
+    private int mActiveScans;
+
+    /**
+     * @return true if the recognizer can run on this device.
+     */
+    public static boolean isSupported() {
+        return CardScanner.processorSupported();
+    }
+
+    /**
+     * Create a scanner with one worker per available processor.
+     */
+    public CardImageScanner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a scanner with <code>threadCount</code> workers, each with its own native
+     * recognizer.
+     *
+     * @throws IllegalStateException if the recognizer is not supported on this device.
+     */
+    public CardImageScanner(int threadCount) {
+        this(threadCount, true);
+    }
+
+    /**
+     * @param checkSupported false if the recognizer library was loaded directly rather than by
+     *                       CardScanner, as the JVM tests do with the host build.
+     */
+    CardImageScanner(int threadCount, boolean checkSupported) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1");
+        }
+        if (checkSupported && !isSupported()) {
+            throw new IllegalStateException("card.io scanning is not supported on this device");
+        }
+
+        mThreadCount = threadCount;
+        mDirectFrames = new DirectFramePool(FRAME_WIDTH, FRAME_HEIGHT, threadCount);
+        mLanes = new ArrayBlockingQueue<Lane>(threadCount);
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                mLanes.add(new Lane(mDirectFrames.acquire()));
+            }
+        } catch (RuntimeException | Error e) {
+            // e.g. the library is missing, or there is no memory for another lane
+            freeLanes();
+            throw e;
+        }
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "card.io image scan " + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Whether to also read the expiry date. Defaults to true.
+     */
+    public void setScanExpiry(boolean scanExpiry) {
+        mScanExpiry = scanExpiry;
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    // ------------------------------------------------------------------------
+    // SINGLE IMAGE
+    // ------------------------------------------------------------------------
+
+    /**
+     * Scan a photo of a card. The image is scaled to fill a 640x480 frame, cropping at the
+     * center, so the card should be framed as it would be in the camera's guide. Portrait images
+     * are rotated to landscape first.
+     */
+    public Result scanBitmap(Bitmap bitmap) {
+        if (bitmap == null) {
+            throw new IllegalArgumentException("bitmap must not be null");
+        }
+        beginScan();
+        try {
+            Lane lane = takeLane();
+            try {
+                return scanBitmap(lane, bitmap);
+            } finally {
+                mLanes.add(lane);
+            }
+        } finally {
+            endScan();
+        }
+    }
+
+    /**
+     * Scan a single 640x480 NV21 frame, such as one delivered by the camera preview.
+     */
+    public Result scanNV21(byte[] frame, int width, int height) {
+        checkFrameSize(width, height);
+        if (frame == null || frame.length < DirectFramePool.frameSize(width, height)) {
+            throw new IllegalArgumentException("frame is too small for " + width + "x" + height);
+        }
+        beginScan();
+        try {
+            Lane lane = takeLane();
+            try {
+                return scanStill(lane, frame);
+            } finally {
+                mLanes.add(lane);
+            }
+        } finally {
+            endScan();
+        }
+    }
+
+    /**
+     * Scan an image file, or a dump of consecutive 640x480 NV21 frames if the file name ends in
+     * <code>.nv21</code> or <code>.yuv</code>.
+     */
+    public Result scanFile(File file) {
+        beginScan();
+        try {
+            Lane lane = takeLane();
+            try {
+                return scanFile(lane, file);
+            } finally {
+                mLanes.add(lane);
+            }
+        } finally {
+            endScan();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // BATCH
+    // ------------------------------------------------------------------------
+
+    /**
+     * Scan many files in parallel, one per worker.
+     *
+     * @return one result per file, in the same order.
+     * @see #scanFile(File)
+     */
+    public List<Result> scanFiles(List<File> files) {
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(files.size());
+        for (final File file : files) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return scanFileInBatch(file);
+                }
+            });
+        }
+        return runAll(tasks);
+    }
+
+    /**
+     * Scan many photos in parallel, one per worker.
+     *
+     * @return one result per bitmap, in the same order.
+     * @see #scanBitmap(Bitmap)
+     */
+    public List<Result> scanBitmaps(List<Bitmap> bitmaps) {
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(bitmaps.size());
+        for (final Bitmap bitmap : bitmaps) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return scanBitmapInBatch(bitmap);
+                }
+            });
+        }
+        return runAll(tasks);
+    }
+
+    /**
+     * Like {@link #scanFile(File)}, for a task of runAll(), which holds off close() for the whole
+     * batch.
+     */
+    private Result scanFileInBatch(File file) {
+        Lane lane = takeLane();
+        try {
+            return scanFile(lane, file);
+        } finally {
+            mLanes.add(lane);
+        }
+    }
+
+    /**
+     * Like {@link #scanBitmap(Bitmap)}, for a task of runAll().
+     */
+    private Result scanBitmapInBatch(Bitmap bitmap) {
+        if (bitmap == null) {
+            throw new IllegalArgumentException("bitmap must not be null");
+        }
+        Lane lane = takeLane();
+        try {
+            return scanBitmap(lane, bitmap);
+        } finally {
+            mLanes.add(lane);
+        }
+    }
+
+    private List<Result> runAll(List<Callable<Result>> tasks) {
+        beginScan();
+        List<Future<Result>> futures;
+        try {
+            futures = mExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while scanning", e);
+        } finally {
+            // tasks still running after an interrupt are waited for by close()
+            endScan();
+        }
+
+        List<Result> results = new ArrayList<Result>(futures.size());
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                results.add(Result.error(String.valueOf(e.getCause())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while scanning", e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Release the native recognizers. Waits for scans in progress to finish; scans started from
+     * now on throw {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        boolean interrupted = false;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            while (mActiveScans > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the lanes can't be freed while in use
+                    interrupted = true;
+                }
+            }
+        }
+        mExecutor.shutdown();
+        while (true) {
+            try {
+                mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // with no scan in progress, every lane is back in the queue
+        freeLanes();
+    }
+
+    private void freeLanes() {
+        Lane lane;
+        while ((lane = mLanes.poll()) != null) {
+            lane.free(mDirectFrames);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // SCANNING
+    // ------------------------------------------------------------------------
+
+    /**
+     * Register a scan, or a batch of them, that close() has to wait for. Must be paired with
+     * {@link #endScan()}.
+     */
+    private synchronized void beginScan() {
+        if (mClosed) {
+            throw new IllegalStateException("scanner is closed");
+        }
+        mActiveScans++;
+    }
+
+    private synchronized void endScan() {
+        if (--mActiveScans == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Only called between {@link #beginScan()} and {@link #endScan()}, so the lanes can't be freed
+     * while waiting for one.
+     */
+    private Lane takeLane() {
+        try {
+            return mLanes.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a scanner", e);
+        }
+    }
+
+    private Result scanFile(Lane lane, File file) {
+        if (file == null || !file.isFile()) {
+            return Result.error("not a file: " + file);
+        }
+        if (isFrameDump(file)) {
+            return scanFrameDump(lane, file);
+        }
+
+        Bitmap bitmap = decodeForFrame(file);
+        if (bitmap == null) {
+            return Result.error("could not decode " + file);
+        }
+        try {
+            return scanBitmap(lane, bitmap);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private Result scanBitmap(Lane lane, Bitmap bitmap) {
+        drawToFrame(lane, bitmap);
+        lane.frameBitmap.getPixels(lane.argb, 0, FRAME_WIDTH, 0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+        argbToNV21(lane.argb, FRAME_WIDTH, FRAME_HEIGHT, lane.nv21);
+        return scanStill(lane, lane.nv21);
+    }
+
+    /**
+     * Submit the same frame until the recognizer is sure of the card number. The passes are what
+     * the recognizer needs before it reports a number, not an input to
+     * {@link Result#getConfidence()}, which does not depend on how many there were.
+     */
+    private Result scanStill(Lane lane, byte[] frame) {
+        NativeRecognizer.nResetAnalytics(lane.nativeHandle);
+        for (int pass = 0; pass < MAX_STILL_IMAGE_PASSES; pass++) {
+            NativeRecognizer.nScanFrame(lane.nativeHandle, frame, FRAME_WIDTH, FRAME_HEIGHT,
+                    CardScanner.ORIENTATION_PORTRAIT, lane.result.getBuffer(), null, mScanExpiry);
+            if (lane.result.isComplete() || !lane.result.isCardDetected()) {
+                // no further pass will find edges that this one did not
+                break;
+            }
+        }
+        return toResult(lane);
+    }
+
+    private Result scanFrameDump(Lane lane, File file) {
+        int frameSize = DirectFramePool.frameSize(FRAME_WIDTH, FRAME_HEIGHT);
+        if (file.length() == 0 || file.length() % frameSize != 0) {
+            return Result.error(file + " is not a sequence of " + FRAME_WIDTH + "x" + FRAME_HEIGHT
+                    + " NV21 frames");
+        }
+
+        NativeRecognizer.nResetAnalytics(lane.nativeHandle);
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            ByteBuffer frame = lane.directFrame;
+            while (true) {
+                frame.clear();
+                while (frame.hasRemaining() && channel.read(frame) >= 0) {
+                    // keep reading until the frame is full or the file ends
+                }
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                NativeRecognizer.nScanFrameDirect(lane.nativeHandle, frame, FRAME_WIDTH,
+                        FRAME_HEIGHT, CardScanner.ORIENTATION_PORTRAIT, lane.result.getBuffer(),
+                        null, mScanExpiry);
+                if (lane.result.isComplete()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            return Result.error("could not read " + file + ": " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return toResult(lane);
+    }
+
+    private Result toResult(Lane lane) {
+        ScanResultBuffer result = lane.result;
+        int framesScanned = NativeRecognizer.nGetNumFramesScanned(lane.nativeHandle);
+
+        CreditCard card = null;
+        float confidence = 0;
+        if (result.isComplete()) {
+            result.decodeInto(lane.info);
+            card = lane.info.creditCard();
+            confidence = confidence(result.getFocusScore());
+        }
+        return new Result(card, confidence, result.isCardDetected(), result.getFocusScore(),
+                framesScanned, null);
+    }
+
+    /**
+     * See {@link Result#getConfidence()}. Matches the focus term of <code>candidateQuality</code>
+     * in nativeRecognizer.cpp.
+     */
+    static float confidence(float focusScore) {
+        return Math.max(0f, Math.min(1f, focusScore / (2 * CardScanner.MIN_FOCUS_SCORE)));
+    }
+
+    // ------------------------------------------------------------------------
+    // IMAGE CONVERSION
+    // ------------------------------------------------------------------------
+
+    private static void checkFrameSize(int width, int height) {
+        if (width != FRAME_WIDTH || height != FRAME_HEIGHT) {
+            throw new IllegalArgumentException("only " + FRAME_WIDTH + "x" + FRAME_HEIGHT
+                    + " frames are supported, got " + width + "x" + height);
+        }
+    }
+
+    private static boolean isFrameDump(File file) {
+        String name = file.getName().toLowerCase();
+        for (String extension : FRAME_DUMP_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode <code>file</code>, subsampled to no less than the frame size, so large photos don't
+     * have to be decoded at full resolution.
+     */
+    private static Bitmap decodeForFrame(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int longSide = Math.max(options.outWidth, options.outHeight);
+        int shortSide = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= FRAME_WIDTH
+                && shortSide / (sampleSize * 2) >= FRAME_HEIGHT) {
+            sampleSize *= 2;
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /**
+     * Scale <code>bitmap</code> to cover the lane's frame bitmap, cropping at the center and
+     * rotating portrait images a quarter turn.
+     */
+    private static void drawToFrame(Lane lane, Bitmap bitmap) {
+        int srcWidth = bitmap.getWidth();
+        int srcHeight = bitmap.getHeight();
+        boolean rotate = srcHeight > srcWidth;
+        if (rotate) {
+            srcWidth = bitmap.getHeight();
+            srcHeight = bitmap.getWidth();
+        }
+        float scale = Math.max((float) FRAME_WIDTH / srcWidth, (float) FRAME_HEIGHT / srcHeight);
+
+        Matrix matrix = lane.matrix;
+        matrix.reset();
+        if (rotate) {
+            matrix.postRotate(90);
+            matrix.postTranslate(bitmap.getHeight(), 0);
+        }
+        matrix.postScale(scale, scale);
+        matrix.postTranslate((FRAME_WIDTH - srcWidth * scale) / 2,
+                (FRAME_HEIGHT - srcHeight * scale) / 2);
+
+        lane.canvas.drawColor(Color.BLACK);
+        lane.canvas.drawBitmap(bitmap, matrix, lane.paint);
+    }
+
+    /**
+     * Convert ARGB pixels to NV21: a full resolution Y plane followed by interleaved V and U
+     * samples, each averaged over a 2x2 block. Uses the BT.601 integer approximation, the same
+     * video range conversion camera preview frames come in. <code>width</code> and
+     * <code>height</code> must be even.
+     */
+    static void argbToNV21(int[] argb, int width, int height, byte[] nv21) {
+        int frameSize = width * height;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int c = argb[row + x];
+                int r = (c >> 16) & 0xff;
+                int g = (c >> 8) & 0xff;
+                int b = c & 0xff;
+                nv21[row + x] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+            }
+        }
+
+        int uvIndex = frameSize;
+        for (int y = 0; y < height; y += 2) {
+            int row = y * width;
+            for (int x = 0; x < width; x += 2) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int i = 0; i < 4; i++) {
+                    int c = argb[row + (i >> 1) * width + x + (i & 1)];
+                    r += (c >> 16) & 0xff;
+                    g += (c >> 8) & 0xff;
+                    b += c & 0xff;
+                }
+                r >>= 2;
+                g >>= 2;
+                b >>= 2;
+                nv21[uvIndex++] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                nv21[uvIndex++] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+            }
+        }
+    }
+}
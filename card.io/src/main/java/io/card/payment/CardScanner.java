@@ -7,23 +7,22 @@ package io.card.payment;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.hardware.Camera;
-import android.hardware.Camera.Parameters;
-import android.hardware.Camera.Size;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.WindowManager;
 
 import java.io.File;
-import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Encapsulates the core image scanning.
@@ -37,19 +36,55 @@ import java.util.Map;
  * closes the scanner and launches the next activity.
  * <p/>
  * HOWEVER, at the moment, the CardScanner is directly communicating with the Preview.
+ * <p/>
+ * Frames come from a {@link FrameSource}: Camera2 where the device supports it properly, the
+ * Camera API otherwise. They arrive on the source's thread and are passed through a bounded
+ * {@link FrameQueue} to a dedicated scan thread, so the camera callback never waits for the
+ * recognizer. Anything the scan thread needs done to the UI or the camera is posted back to the
+ * main thread.
+ * <p/>
+ * On multi-core devices, the scan thread only detects the card, and hands frames with a card to a
+ * recognition thread through a {@link StageHandoff}, so the next frame is being detected while the
+ * previous one is recognized.
  */
-class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
-        SurfaceHolder.Callback {
+class CardScanner implements FrameSource.Listener, SurfaceHolder.Callback, Handler.Callback {
     private static final String TAG = CardScanner.class.getSimpleName();
 
-    private static final float MIN_FOCUS_SCORE = 6; // TODO - parameterize this
+    static final float MIN_FOCUS_SCORE = 6; // TODO - parameterize this
     // value based on phone? or
     // change focus behavior?
 
+    // Pre-filter ahead of the focus score (see NativeRecognizer.nSetPrefilter): only rejects frames
+    // with next to no contrast in the guide frame, well below anything MIN_FOCUS_SCORE lets through.
+    static final int PREFILTER_DECIMATION = 4;
+    static final float PREFILTER_MIN_SCORE = 1.5f;
+
+    // On devices too slow to recognize every frame with a card, recognize the best of every few
+    // rather than whichever ones happen to arrive while the scan thread is free.
+    private static final int SLOW_DEVICE_MAX_PROCESSORS = 2;
+    private static final int SLOW_DEVICE_RECOGNITION_WINDOW = 3;
+    private static final int SLOW_DEVICE_RECOGNITION_BUDGET = 1;
+
     private static final int DEFAULT_UNBLUR_DIGITS = -1; // no blur per default
 
-    private static final int CAMERA_CONNECT_TIMEOUT = 5000;
-    private static final int CAMERA_CONNECT_RETRY_INTERVAL = 50;
+    // one buffer being filled by the camera, one queued and one being scanned
+    private static final int DEFAULT_PREVIEW_BUFFER_COUNT = 3;
+
+    private static final int DEFAULT_FRAME_QUEUE_CAPACITY = 1;
+    private static final FrameQueue.DropPolicy DEFAULT_FRAME_DROP_POLICY =
+            FrameQueue.DropPolicy.DROP_OLDEST;
+
+    // messages posted by the scan thread to the main thread
+    private static final int MSG_EDGE_UPDATE = 1;
+    private static final int MSG_CARD_DETECTED = 2;
+    private static final int MSG_AUTO_FOCUS = 3;
+    private static final int MSG_FIRST_FRAME = 4;
+    private static final int MSG_CAMERA_OPENED = 5;
+    private static final int MSG_CAMERA_ERROR = 6;
+
+    private static final int CAMERA_CLOSED = 0;
+    private static final int CAMERA_OPENING = 1;
+    private static final int CAMERA_OPEN = 2;
 
     static final int ORIENTATION_PORTRAIT = 1;
 
@@ -64,20 +99,10 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
 
     public static native boolean nUseX86();
 
-    private native void nSetup(boolean shouldDetectOnly, float minFocusScore);
-
-    private native void nSetup(boolean shouldDetectOnly, float minFocusScore, int unBlur);
-
-    private native void nResetAnalytics();
-
-    private native void nGetGuideFrame(int orientation, int previewWidth, int previewHeight, Rect r);
-
-    private native void nScanFrame(byte[] data, int frameWidth, int frameHeight, int orientation,
-                                   DetectionInfo dinfo, Bitmap resultBitmap, boolean scanExpiry);
-
-    private native int nGetNumFramesScanned();
-
-    private native void nCleanup();
+    // owned by this scanner; released in endScanning()
+    private long mNativeHandle;
+    // taken just before the native state is released
+    private ScanMetrics mFinalScanMetrics;
 
     private Bitmap detectedBitmap;
 
@@ -88,30 +113,77 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
     private boolean mSuppressScan = false;
     private boolean mScanExpiry;
     private int mUnblurDigits = DEFAULT_UNBLUR_DIGITS;
+    private boolean mSkipSimilarFrames;
 
     // read by CardIOActivity to set up Preview
-    final int mPreviewWidth = 640;
-    final int mPreviewHeight = 480;
-
-    private int mFrameOrientation = ORIENTATION_PORTRAIT;
+    static final int PREVIEW_WIDTH = 640;
+    static final int PREVIEW_HEIGHT = 480;
 
-    private boolean mFirstPreviewFrame = true;
-    private long captureStart;
-    private long mAutoFocusStartedAt;
-    private long mAutoFocusCompletedAt;
+    final int mPreviewWidth = PREVIEW_WIDTH;
+    final int mPreviewHeight = PREVIEW_HEIGHT;
 
-    private Camera mCamera;
-    private byte[] mPreviewBuffer;
+    // written on the main thread, read by the scan thread
+    private volatile int mFrameOrientation = ORIENTATION_PORTRAIT;
 
-    // accessed by test harness subclass.
-    protected boolean useCamera = true;
+    // written by the frame source's thread once preview has started
+    private volatile boolean mFirstPreviewFrame = true;
+    private long mAutoFocusStartedAt;
+    private volatile long mAutoFocusCompletedAt;
+
+    private FrameSource mFrameSource;
+    // The source is opened on mCameraExecutor, so that a busy camera doesn't hold up the main
+    // thread; the main thread only touches it while mCameraState is CAMERA_OPEN.
+    private ExecutorService mCameraExecutor;
+    private int mCameraState = CAMERA_CLOSED;
+    // tells the result of an open that was abandoned by pauseScanning() from the current one
+    private int mCameraOpenId;
+    // set between resumeScanning() and pauseScanning()
+    private boolean mScanningResumed;
+    // Camera2 failed once; the Camera API is used from then on
+    private boolean mCamera2Failed;
+    private SurfaceHolder mSurfaceHolder;
+    private int mPreviewBufferCount = DEFAULT_PREVIEW_BUFFER_COUNT;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper(), this);
+    private int mFrameQueueCapacity = DEFAULT_FRAME_QUEUE_CAPACITY;
+    private FrameQueue.DropPolicy mFrameDropPolicy = DEFAULT_FRAME_DROP_POLICY;
+    // read by the frame source's thread
+    private volatile FrameQueue<Frame> mFrameQueue;
+    private ScanThread mScanThread;
+    // set when detection and recognition run on separate threads
+    private boolean mPipelined;
+    private StageHandoff mHandoff;
+    private RecognitionThread mRecognitionThread;
+    private int mNextPipelineSlot;
+    private volatile boolean mCardReported;
+
+    // Reused for every frame so that the scan loop does not allocate. mScanResult and mScanInfo
+    // belong to the scan thread; the edge infos belong to the main thread and alternate, so the
+    // overlay can compare each update with the previous one.
+    private final ScanResultBuffer mScanResult = new ScanResultBuffer();
+    private final ScanResultBuffer mRecognitionResult = new ScanResultBuffer();
+    private final DetectionInfo mScanInfo = new DetectionInfo();
+    private final DetectionInfo[] mEdgeInfos = { new DetectionInfo(), new DetectionInfo() };
+    private int mNextEdgeInfo;
+    private int mLastEdgeMask;
 
     private boolean isSurfaceValid;
 
     private int numManualRefocus;
     private int numAutoRefocus;
     private int numManualTorchChange;
-    private int numFramesSkipped;
+
+    // SystemClock.elapsedRealtime() of the points reached by the current scan, 0 until reached.
+    // The volatile ones, and the frame counts, are written by the scan thread or the frame source.
+    private long mScanStartedAt;
+    private volatile long mFirstFrameAt;
+    private volatile long mEdgeLockAt;
+    private volatile long mResultAt;
+    private volatile int numFramesSkipped;
+    private volatile int numFramesScanned;
+    private volatile int numFramesOutOfFocus;
+    private volatile int numFramesRejectedEarly;
+    private volatile int numFramesUnchanged;
 
     // ------------------------------------------------------------------------
     // STATIC INITIALIZATION
@@ -190,49 +262,179 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
     }
 
     CardScanner(CardIOActivity scanActivity, int currentFrameOrientation) {
+        this(scanActivity, currentFrameOrientation, null);
+    }
+
+    /**
+     * @param frameSource where frames come from, e.g. a <code>ReplayFrameSource</code> in debug
+     *                    builds, or <code>null</code> for the device's camera.
+     */
+    CardScanner(CardIOActivity scanActivity, int currentFrameOrientation, FrameSource frameSource) {
+        mFrameSource = frameSource;
         Intent scanIntent = scanActivity.getIntent();
         if (scanIntent != null) {
             mSuppressScan = scanIntent.getBooleanExtra(CardIOActivity.EXTRA_SUPPRESS_SCAN, false);
             mScanExpiry = scanIntent.getBooleanExtra(CardIOActivity.EXTRA_REQUIRE_EXPIRY, false)
                     && scanIntent.getBooleanExtra(CardIOActivity.EXTRA_SCAN_EXPIRY, true);
             mUnblurDigits = scanIntent.getIntExtra(CardIOActivity.EXTRA_UNBLUR_DIGITS, DEFAULT_UNBLUR_DIGITS);
+            mSkipSimilarFrames = scanIntent.getBooleanExtra(
+                    CardIOActivity.EXTRA_SKIP_SIMILAR_FRAMES, false);
         }
         mScanActivityRef = new WeakReference<>(scanActivity);
         mFrameOrientation = currentFrameOrientation;
-        nSetup(mSuppressScan, MIN_FOCUS_SCORE, mUnblurDigits);
+        mNativeHandle = NativeRecognizer.nSetup(mSuppressScan, MIN_FOCUS_SCORE, mUnblurDigits);
+        // detectedBitmap is only shown once a card is reported
+        NativeRecognizer.nSetDeferCardImage(mNativeHandle, true);
+        NativeRecognizer.nSetPrefilter(mNativeHandle, PREFILTER_DECIMATION, PREFILTER_MIN_SCORE);
+        NativeRecognizer.nSetCornerTracking(mNativeHandle, true);
+        // off unless asked for, until a replay benchmark shows it costs no time-to-result
+        NativeRecognizer.nSetSkipSimilarFrames(mNativeHandle, mSkipSimilarFrames);
+        // detect-only mode has no recognition stage to overlap with
+        mPipelined = !mSuppressScan && Runtime.getRuntime().availableProcessors() > 1;
+        if (Runtime.getRuntime().availableProcessors() <= SLOW_DEVICE_MAX_PROCESSORS) {
+            NativeRecognizer.nSetRecognitionBudget(mNativeHandle, SLOW_DEVICE_RECOGNITION_WINDOW,
+                    SLOW_DEVICE_RECOGNITION_BUDGET);
+        }
     }
 
     /**
-     * Connect or reconnect to camera. If fails, sleeps and tries again. Returns <code>true</code> if successful,
-     * <code>false</code> if maxTimeout passes.
-     */
-    private Camera connectToCamera(int checkInterval, int maxTimeout) {
-        long start = System.currentTimeMillis();
-        if (useCamera) {
-            do {
-                try {
-                    // Camera.open() will open the back-facing camera. Front cameras are not
-                    // attempted.
-                    return Camera.open();
-                } catch (RuntimeException e) {
-                    try {
-                        Log.w(Util.PUBLIC_LOG_TAG,
-                                "Wasn't able to connect to camera service. Waiting and trying again...");
-                        Thread.sleep(checkInterval);
-                    } catch (InterruptedException e1) {
-                        Log.e(Util.PUBLIC_LOG_TAG, "Interrupted while waiting for camera", e1);
-                    }
-                } catch (Exception e) {
-                    Log.e(Util.PUBLIC_LOG_TAG, "Unexpected exception. Please report it as a GitHub issue", e);
-                    maxTimeout = 0;
+     * Camera2 if the device supports it properly and it hasn't failed yet, the Camera API
+     * otherwise.
+     */
+    private FrameSource createFrameSource() {
+        CardIOActivity activity = mScanActivityRef.get();
+        if (activity != null && !mCamera2Failed
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && Camera2FrameSource.isSupported(activity, mPreviewWidth, mPreviewHeight)) {
+            return new Camera2FrameSource(activity, mPreviewWidth, mPreviewHeight);
+        }
+        return new Camera1FrameSource(mPreviewWidth, mPreviewHeight, mPreviewBufferCount);
+    }
+
+    /**
+     * Replace a Camera2 source that failed with the Camera API, and start opening that. The
+     * failed source must already be closed, or be queued for closing.
+     *
+     * @return <code>false</code> if the source wasn't Camera2, so there is nothing to fall back to.
+     */
+    private boolean fallBackToCamera1() {
+        if (!(mFrameSource instanceof Camera2FrameSource)) {
+            return false;
+        }
+        Log.w(Util.PUBLIC_LOG_TAG, "Camera2 failed, falling back to the Camera API");
+        mCamera2Failed = true;
+        mFrameSource = createFrameSource();
+        openCameraAsync();
+        return true;
+    }
+
+    private boolean isCameraOpen() {
+        return mCameraState == CAMERA_OPEN;
+    }
+
+    /**
+     * Open the frame source on the camera executor. The outcome is handled by
+     * {@link #onCameraOpened(int, boolean)} on the main thread.
+     */
+    private void openCameraAsync() {
+        if (mFrameSource == null) {
+            mFrameSource = createFrameSource();
+        }
+        if (mCameraExecutor == null) {
+            mCameraExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "card.io camera open");
                 }
+            });
+        }
+        mCameraState = CAMERA_OPENING;
+        final FrameSource source = mFrameSource;
+        final int openId = ++mCameraOpenId;
+        final int displayRotation = getRotationalOffset();
+        mCameraExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean opened = source.open(CardScanner.this, displayRotation);
+                mMainHandler.obtainMessage(MSG_CAMERA_OPENED, openId, opened ? 1 : 0)
+                        .sendToTarget();
+            }
+        });
+    }
+
+    private void onCameraOpened(int openId, boolean opened) {
+        if (openId != mCameraOpenId || mCameraState != CAMERA_OPENING) {
+            // abandoned by pauseScanning(), which has already queued closing the source
+            return;
+        }
+        if (!opened) {
+            mCameraState = CAMERA_CLOSED;
+            if (fallBackToCamera1()) {
+                return;
+            }
+            Log.e(Util.PUBLIC_LOG_TAG, "prepare scanner couldn't connect to camera!");
+            CardIOActivity activity = mScanActivityRef.get();
+            if (mScanningResumed && activity != null) {
+                activity.onCameraOpenFailed();
+            }
+            return;
+        }
+        mCameraState = CAMERA_OPEN;
+        if (mScanningResumed) {
+            if (isSurfaceValid) {
+                makePreviewGo(mSurfaceHolder);
+            }
+            setFlashOn(false);
+        }
+    }
 
-            } while (System.currentTimeMillis() - start < maxTimeout);
+    /**
+     * The open source lost the camera or couldn't start its preview: fall back to the Camera API
+     * if that was Camera2, and give up otherwise.
+     */
+    private void handleCameraError() {
+        if (mCameraState != CAMERA_OPEN) {
+            // closed meanwhile
+            return;
+        }
+        // the scan thread returns frames to the source, so stop it before closing the source
+        stopScanThread();
+        closeCamera();
+        if (fallBackToCamera1()) {
+            if (mScanningResumed) {
+                startScanThread();
+            }
+            return;
+        }
+        Log.e(Util.PUBLIC_LOG_TAG, "lost the camera");
+        CardIOActivity activity = mScanActivityRef.get();
+        if (mScanningResumed && activity != null) {
+            activity.onCameraOpenFailed();
         }
+    }
 
-        return null;
+    /**
+     * Release the frame source, or have it released as soon as a pending open returns.
+     */
+    private void closeCamera() {
+        if (mCameraState == CAMERA_OPENING) {
+            final FrameSource source = mFrameSource;
+            mCameraExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    source.close();
+                }
+            });
+        } else if (mCameraState == CAMERA_OPEN) {
+            mFrameSource.close();
+        }
+        mCameraState = CAMERA_CLOSED;
     }
 
+    /**
+     * Reset the scan counters and start opening the camera, without waiting for it. Scanning
+     * starts once both the camera is open and {@link #resumeScanning(SurfaceHolder)} was called.
+     */
     void prepareScanner() {
         mFirstPreviewFrame = true;
         mAutoFocusStartedAt = 0;
@@ -243,38 +445,13 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
         numManualTorchChange = 0;
 
         numFramesSkipped = 0;
+        numFramesScanned = 0;
+        numFramesOutOfFocus = 0;
+        numFramesRejectedEarly = 0;
+        numFramesUnchanged = 0;
 
-        if (useCamera && mCamera == null) {
-            mCamera = connectToCamera(CAMERA_CONNECT_RETRY_INTERVAL, CAMERA_CONNECT_TIMEOUT);
-            if (mCamera == null) {
-                Log.e(Util.PUBLIC_LOG_TAG, "prepare scanner couldn't connect to camera!");
-                return;
-            }
-
-            setCameraDisplayOrientation(mCamera);
-
-            Camera.Parameters parameters = mCamera.getParameters();
-
-            List<Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
-            if (supportedPreviewSizes != null) {
-                Size previewSize = null;
-                for (Size s : supportedPreviewSizes) {
-                    if (s.width == 640 && s.height == 480) {
-                        previewSize = s;
-                        break;
-                    }
-                }
-                if (previewSize == null) {
-                    previewSize = supportedPreviewSizes.get(0);
-
-                    previewSize.width = mPreviewWidth;
-                    previewSize.height = mPreviewHeight;
-                }
-            }
-
-            parameters.setPreviewSize(mPreviewWidth, mPreviewHeight);
-
-            mCamera.setParameters(parameters);
+        if (mCameraState == CAMERA_CLOSED) {
+            openCameraAsync();
         }
 
         if (detectedBitmap == null) {
@@ -283,72 +460,72 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
         }
     }
 
+    /**
+     * Start scanning frames shown on <code>holder</code>, as soon as the camera is open. If it
+     * can't be opened, {@link CardIOActivity#onCameraOpenFailed()} is called later on.
+     *
+     * @return <code>false</code> if scanning can't be resumed at all.
+     */
     @SuppressWarnings("deprecation")
     boolean resumeScanning(SurfaceHolder holder) {
-        if (mCamera == null) {
-            prepareScanner();
-        }
-
-        if (useCamera && mCamera == null) {
+        if (mNativeHandle == 0) {
             return false;
         }
+        if (mCameraState == CAMERA_CLOSED) {
+            prepareScanner();
+        }
 
         assert holder != null;
 
-        if (useCamera && mPreviewBuffer == null) {
-            Camera.Parameters parameters = mCamera.getParameters();
-            int previewFormat = parameters.getPreviewFormat();
-            int bytesPerPixel = ImageFormat.getBitsPerPixel(previewFormat) / 8;
-            int bufferSize = mPreviewWidth * mPreviewHeight * bytesPerPixel * 3;
+        // reset while no scan thread is using the native context
+        NativeRecognizer.nResetAnalytics(mNativeHandle);
+        mScanStartedAt = SystemClock.elapsedRealtime();
+        mFirstFrameAt = 0;
+        mEdgeLockAt = 0;
+        mResultAt = 0;
 
-            mPreviewBuffer = new byte[bufferSize];
-            mCamera.addCallbackBuffer(mPreviewBuffer);
-        }
+        mScanningResumed = true;
+        mSurfaceHolder = holder;
+        startScanThread();
 
         holder.addCallback(this);
         holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
-        if (useCamera) {
-            mCamera.setPreviewCallbackWithBuffer(this);
-        }
 
-        if (isSurfaceValid) {
+        if (isSurfaceValid && isCameraOpen()) {
             makePreviewGo(holder);
         }
 
         // Turn flash off
         setFlashOn(false);
-        captureStart = System.currentTimeMillis();
-
-        nResetAnalytics();
 
         return true;
     }
 
     public void pauseScanning() {
+        mScanningResumed = false;
+        // the scan thread returns frames to the camera, so stop it before releasing the camera
+        stopScanThread();
         setFlashOn(false);
-        // Because the Camera object is a shared resource, it's very
-        // important to release it when the activity is paused.
-        if (mCamera != null) {
-            try {
-                mCamera.stopPreview();
-                mCamera.setPreviewDisplay(null);
-            } catch (IOException e) {
-                Log.w(Util.PUBLIC_LOG_TAG, "can't stop preview display", e);
-            }
-            mCamera.setPreviewCallback(null);
-            mCamera.release();
-            mPreviewBuffer = null;
-            mCamera = null;
-        }
+        closeCamera();
     }
 
     public void endScanning() {
-        if (mCamera != null) {
+        if (mCameraState != CAMERA_CLOSED) {
             pauseScanning();
         }
-        nCleanup();
+        stopScanThread();
+        if (mCameraExecutor != null) {
+            // runs a pending close first
+            mCameraExecutor.shutdown();
+            mCameraExecutor = null;
+        }
+        if (mNativeHandle != 0) {
+            mFinalScanMetrics = ScanMetrics.fromNative(mNativeHandle);
+        }
+        NativeRecognizer.nCleanup(mNativeHandle);
+        mNativeHandle = 0;
 
-        mPreviewBuffer = null;
+        mFrameSource = null;
     }
 
     /*
@@ -361,20 +538,7 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
         assert holder.getSurface() != null;
         mFirstPreviewFrame = true;
 
-        if (useCamera) {
-            try {
-                mCamera.setPreviewDisplay(holder);
-            } catch (IOException e) {
-                return false;
-            }
-            try {
-                mCamera.startPreview();
-                mCamera.autoFocus(this);
-            } catch (RuntimeException e) {
-                return false;
-            }
-        }
-        return true;
+        return mFrameSource.startPreview(holder);
     }
 
     /*
@@ -382,13 +546,13 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
      */
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
-        // The Surface has been created, acquire the camera and tell it where to draw.
-        if (mCamera != null || !useCamera) {
-            isSurfaceValid = true;
+        // The Surface has been created, tell the camera where to draw. If it is still opening,
+        // it is told once it's open.
+        isSurfaceValid = true;
+        if (isCameraOpen()) {
             makePreviewGo(holder);
-        } else {
+        } else if (mCameraState == CAMERA_CLOSED) {
             Log.wtf(Util.PUBLIC_LOG_TAG, "CardScanner.surfaceCreated() - camera is null!");
-            return;
         }
     }
 
@@ -404,77 +568,324 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
      */
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        if (mCamera != null) {
-            try {
-                mCamera.stopPreview();
-            } catch (Exception e) {
-                Log.e(Util.PUBLIC_LOG_TAG, "error stopping camera", e);
-            }
+        if (isCameraOpen()) {
+            mFrameSource.stopPreview();
         }
         isSurfaceValid = false;
     }
 
     /**
-     * Handles processing of each frame.
-     * <p/>
-     * This method is called by Android, never directly by application code.
+     * Set how frames are queued for the scan thread. Takes effect on the next call to
+     * {@link #resumeScanning(SurfaceHolder)}.
+     *
+     * @param capacity   number of frames that may wait for the scan thread
+     * @param dropPolicy what to do with a frame that arrives while the queue is full
      */
-    private static boolean processingInProgress = false;
+    void setFrameQueuePolicy(int capacity, FrameQueue.DropPolicy dropPolicy) {
+        mFrameQueueCapacity = capacity;
+        mFrameDropPolicy = dropPolicy;
+    }
 
-    @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
+    /**
+     * Set how many preview buffers are cycled between the Camera API and the scanner. Takes effect
+     * the next time the buffers are allocated, i.e. after {@link #endScanning()}.
+     */
+    void setPreviewBufferCount(int count) {
+        mPreviewBufferCount = count;
+    }
+
+    /**
+     * @return the preview buffers, or <code>null</code> unless frames come from the Camera API.
+     */
+    PreviewBufferPool getPreviewBufferPool() {
+        return (mFrameSource instanceof Camera1FrameSource)
+                ? ((Camera1FrameSource) mFrameSource).getPreviewBufferPool() : null;
+    }
 
-        if (data == null) {
+    private void startScanThread() {
+        stopScanThread();
+        mFrameQueue = new FrameQueue<>(mFrameQueueCapacity, mFrameDropPolicy);
+        mLastEdgeMask = -1;
+        mCardReported = false;
+        if (mPipelined) {
+            mHandoff = new StageHandoff();
+            mNextPipelineSlot = 0;
+            mRecognitionThread = new RecognitionThread(mHandoff);
+            mRecognitionThread.start();
+        }
+        mScanThread = new ScanThread(mFrameQueue);
+        mScanThread.start();
+    }
+
+    private void stopScanThread() {
+        if (mScanThread == null) {
             return;
         }
+        mFrameQueue.close();
+        if (mHandoff != null) {
+            mHandoff.close();
+        }
+        boolean interrupted = join(mScanThread);
+        if (mRecognitionThread != null) {
+            interrupted |= join(mRecognitionThread);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mScanThread = null;
+        mRecognitionThread = null;
+        mHandoff = null;
+        mFrameQueue = null;
+        // drop what the scan threads posted, but not a camera open still to be handled
+        mMainHandler.removeMessages(MSG_EDGE_UPDATE);
+        mMainHandler.removeMessages(MSG_CARD_DETECTED);
+        mMainHandler.removeMessages(MSG_AUTO_FOCUS);
+        mMainHandler.removeMessages(MSG_FIRST_FRAME);
+    }
 
-        if (processingInProgress) {
-            // return frame buffer to pool
-            numFramesSkipped++;
-            if (camera != null) {
-                camera.addCallbackBuffer(data);
+    /**
+     * Wait for <code>thread</code> to finish, even if interrupted.
+     *
+     * @return whether the calling thread was interrupted meanwhile.
+     */
+    private static boolean join(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
-            return;
         }
-        processingInProgress = true;
+        return interrupted;
+    }
 
+    /**
+     * Handles each frame by handing it to the scan thread. Never blocks on the scan itself, so the
+     * camera keeps delivering frames while a previous one is being recognized.
+     * <p/>
+     * Called by the frame source, on its thread.
+     */
+    @Override
+    public void onFrame(Frame frame) {
         // TODO: eliminate this foolishness and measure/layout properly.
         if (mFirstPreviewFrame) {
             mFirstPreviewFrame = false;
+            if (mFirstFrameAt == 0) {
+                mFirstFrameAt = SystemClock.elapsedRealtime();
+            }
             mFrameOrientation = ORIENTATION_PORTRAIT;
-            mScanActivityRef.get().onFirstFrame();
+            mMainHandler.sendEmptyMessage(MSG_FIRST_FRAME);
         }
 
-        DetectionInfo dInfo = new DetectionInfo();
+        FrameQueue<Frame> queue = mFrameQueue;
+        Frame dropped = (queue != null) ? queue.offer(frame) : frame;
+        if (dropped != null) {
+            // return frame buffer to the camera
+            numFramesSkipped++;
+            dropped.release();
+        }
+    }
 
+    /**
+     * Runs the recognizer on the scan thread. Results that touch the UI or the camera are posted
+     * back to the main thread.
+     *
+     * @return <code>true</code> if a card was reported and scanning should stop.
+     */
+    private boolean scanFrame(Frame frame) {
         /** pika **/
-        nScanFrame(data, mPreviewWidth, mPreviewHeight, mFrameOrientation, dInfo, detectedBitmap, mScanExpiry);
+        frame.scan(mNativeHandle, mFrameOrientation, mScanResult.getBuffer(), detectedBitmap,
+                mScanExpiry);
+
+        return onFrameScanned(mScanResult);
+    }
+
+    /**
+     * Detection stage of {@link #scanFrame(Frame)}, when pipelined. Frames with a card are
+     * handed to the recognition thread; this waits until it has taken the frame, i.e. until it is
+     * done with the previous one.
+     */
+    private void detectFrame(Frame frame) throws InterruptedException {
+        int slot = mNextPipelineSlot;
+        boolean handOff = frame.detect(mNativeHandle, slot, mFrameOrientation,
+                mScanResult.getBuffer(), detectedBitmap != null);
+        if (onFrameDetected(mScanResult) && handOff) {
+            mNextPipelineSlot = (slot + 1) % NativeRecognizer.PIPELINE_SLOTS;
+            mHandoff.put(slot);
+        }
+    }
+
+    /**
+     * Recognition stage of {@link #scanFrame(Frame)}, when pipelined.
+     */
+    private boolean recognizeFrame(int slot) {
+        NativeRecognizer.nRecognizeFrame(mNativeHandle, slot, mRecognitionResult.getBuffer(),
+                detectedBitmap, mScanExpiry);
+        return onFrameRecognized(mRecognitionResult);
+    }
 
-        boolean sufficientFocus = (dInfo.focusScore >= MIN_FOCUS_SCORE);
+    private boolean onFrameScanned(ScanResultBuffer result) {
+        return onFrameDetected(result) && onFrameRecognized(result);
+    }
+
+    /**
+     * Counts the frame and passes on what detection found.
+     *
+     * @return whether there may be a card to recognize.
+     */
+    private boolean onFrameDetected(ScanResultBuffer result) {
+        numFramesScanned++;
+        if (result.isUnchanged()) {
+            numFramesUnchanged++;
+        }
+        boolean sufficientFocus = (result.getFocusScore() >= MIN_FOCUS_SCORE);
 
         if (!sufficientFocus) {
-            triggerAutoFocus(false);
-        } else if (dInfo.predicted() || (mSuppressScan && dInfo.detected())) {
-            mScanActivityRef.get().onCardDetected(detectedBitmap, dInfo);
+            numFramesOutOfFocus++;
+            if (result.isRejectedEarly()) {
+                numFramesRejectedEarly++;
+            }
+            mMainHandler.sendEmptyMessage(MSG_AUTO_FOCUS);
+            return false;
         }
-        // give the image buffer back to the camera, AFTER we're done reading
-        // the image.
-        if (camera != null) {
-            camera.addCallbackBuffer(data);
+
+        onEdgeUpdate(result.getEdgeMask());
+        if (mEdgeLockAt == 0 && result.isCardDetected()) {
+            mEdgeLockAt = SystemClock.elapsedRealtime();
         }
-        processingInProgress = false;
+        return true;
+    }
 
+    /**
+     * Reports the card if it has been read (or, in detect-only mode, found).
+     *
+     * @return <code>true</code> if a card was reported and scanning should stop.
+     */
+    private boolean onFrameRecognized(ScanResultBuffer result) {
+        DetectionInfo dInfo = mScanInfo;
+        result.decodeInto(dInfo);
+        if (dInfo.predicted() || (mSuppressScan && dInfo.detected())) {
+            // detectedBitmap and dInfo now belong to the main thread until scanning is resumed.
+            mResultAt = SystemClock.elapsedRealtime();
+            mMainHandler.obtainMessage(MSG_CARD_DETECTED, dInfo).sendToTarget();
+            return true;
+        }
+        return false;
     }
 
-    void onEdgeUpdate(DetectionInfo dInfo) {
-        mScanActivityRef.get().onEdgeUpdate(dInfo);
+    /**
+     * Forwards edge changes to the UI.
+     */
+    private void onEdgeUpdate(int edges) {
+        if (edges != mLastEdgeMask) {
+            mLastEdgeMask = edges;
+            mMainHandler.obtainMessage(MSG_EDGE_UPDATE, edges, 0).sendToTarget();
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what == MSG_CAMERA_OPENED) {
+            onCameraOpened(msg.arg1, msg.arg2 != 0);
+            return true;
+        }
+        if (msg.what == MSG_CAMERA_ERROR) {
+            handleCameraError();
+            return true;
+        }
+        CardIOActivity activity = mScanActivityRef.get();
+        if (activity == null) {
+            return true;
+        }
+        switch (msg.what) {
+            case MSG_EDGE_UPDATE:
+                DetectionInfo edgeInfo = mEdgeInfos[mNextEdgeInfo];
+                mNextEdgeInfo = (mNextEdgeInfo + 1) % mEdgeInfos.length;
+                edgeInfo.setEdgeMask(msg.arg1);
+                activity.onEdgeUpdate(edgeInfo);
+                return true;
+            case MSG_CARD_DETECTED:
+                activity.onCardDetected(detectedBitmap, (DetectionInfo) msg.obj);
+                return true;
+            case MSG_AUTO_FOCUS:
+                triggerAutoFocus(false);
+                return true;
+            case MSG_FIRST_FRAME:
+                activity.onFirstFrame();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Takes frames off the {@link FrameQueue} and scans them until the queue is closed, returning
+     * each frame to its source once the recognizer is done reading it.
+     */
+    private class ScanThread extends Thread {
+        private final FrameQueue<Frame> mQueue;
+
+        ScanThread(FrameQueue<Frame> queue) {
+            super("card.io scan");
+            mQueue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Frame frame;
+                while ((frame = mQueue.take()) != null) {
+                    try {
+                        if (!mCardReported) {
+                            if (mPipelined) {
+                                detectFrame(frame);
+                            } else if (scanFrame(frame)) {
+                                mCardReported = true;
+                            }
+                        }
+                    } finally {
+                        // the camera is only released after this thread has been joined.
+                        frame.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "scan thread interrupted");
+            }
+        }
+    }
+
+    /**
+     * Recognizes the frames the scan thread found a card in, until the handoff is closed.
+     */
+    private class RecognitionThread extends Thread {
+        private final StageHandoff mHandoff;
+
+        RecognitionThread(StageHandoff handoff) {
+            super("card.io recognize");
+            mHandoff = handoff;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int slot;
+                while ((slot = mHandoff.take()) != StageHandoff.CLOSED) {
+                    if (!mCardReported && recognizeFrame(slot)) {
+                        mCardReported = true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "recognition thread interrupted");
+            }
+        }
     }
 
     Rect getGuideFrame(int orientation, int previewWidth, int previewHeight) {
         Rect r = null;
         if (processorSupported()) {
             r = new Rect();
-            nGetGuideFrame(orientation, previewWidth, previewHeight, r);
+            NativeRecognizer.nGetGuideFrame(orientation, previewWidth, previewHeight, r);
         }
         return r;
     }
@@ -495,18 +906,33 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
         return mFrameOrientation;
     }
 
-    Map<String, Object> getAnalytics() {
-        HashMap<String, Object> analytics = new HashMap<String, Object>(11);
-
-        analytics.put("num_frames_scanned", Integer.valueOf(nGetNumFramesScanned()));
-        analytics.put("num_frames_skipped", Integer.valueOf(numFramesSkipped));
+    /**
+     * Per-stage latency of the native pipeline over all frames this scanner has scanned, including
+     * after {@link #endScanning()}. While scanning, the snapshot is taken without stopping the scan
+     * thread, so the last frame may be partially counted.
+     */
+    ScanMetrics getScanMetrics() {
+        if (mNativeHandle == 0 && mFinalScanMetrics != null) {
+            return mFinalScanMetrics;
+        }
+        return ScanMetrics.fromNative(mNativeHandle);
+    }
 
-        analytics.put("elapsed_time", Double.valueOf((System.currentTimeMillis() - captureStart) / 1000));
+    /**
+     * Analytics of the current scan, i.e. since scanning was last resumed. Call after
+     * {@link #pauseScanning()} to get final frame counts.
+     */
+    ScanAnalytics getAnalytics() {
+        long now = SystemClock.elapsedRealtime();
+        return new ScanAnalytics(sinceScanStart(mFirstFrameAt), sinceScanStart(mEdgeLockAt),
+                sinceScanStart(mResultAt), now - mScanStartedAt, numFramesScanned,
+                numFramesSkipped, numFramesOutOfFocus, numFramesRejectedEarly,
+                numFramesUnchanged, numManualRefocus, numAutoRefocus, numManualTorchChange,
+                getScanMetrics());
+    }
 
-        analytics.put("num_manual_refocusings", Integer.valueOf(numManualRefocus));
-        analytics.put("num_auto_triggered_refocusings", Integer.valueOf(numAutoRefocus));
-        analytics.put("num_manual_torch_changes", Integer.valueOf(numManualTorchChange));
-        return analytics;
+    private long sinceScanStart(long timestamp) {
+        return timestamp == 0 ? ScanAnalytics.NOT_REACHED : timestamp - mScanStartedAt;
     }
 
     // ------------------------------------------------------------------------
@@ -514,15 +940,21 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
     // ------------------------------------------------------------------------
 
     /**
-     * Invoked when autoFocus is complete
-     * <p/>
-     * This method is called by Android, never directly by application code.
+     * Invoked when autoFocus is complete, on any thread.
      */
     @Override
-    public void onAutoFocus(boolean success, Camera camera) {
+    public void onAutoFocus(boolean success) {
         mAutoFocusCompletedAt = System.currentTimeMillis();
     }
 
+    /**
+     * Invoked when the frame source fails after opening, on any thread.
+     */
+    @Override
+    public void onCameraError() {
+        mMainHandler.sendEmptyMessage(MSG_CAMERA_ERROR);
+    }
+
     /**
      * True if autoFocus is in progress
      */
@@ -544,17 +976,16 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
      * @param isManual callback for when autofocus is complete
      */
     void triggerAutoFocus(boolean isManual) {
-        if (useCamera && !isAutoFocusing()) {
-            try {
-                mAutoFocusStartedAt = System.currentTimeMillis();
-                mCamera.autoFocus(this);
+        if (isCameraOpen() && !isAutoFocusing()) {
+            mAutoFocusStartedAt = System.currentTimeMillis();
+            if (mFrameSource.autoFocus()) {
                 if (isManual) {
                     numManualRefocus++;
                 } else {
                     numAutoRefocus++;
                 }
-            } catch (RuntimeException e) {
-                Log.w(TAG, "could not trigger auto focus: " + e);
+            } else {
+                mAutoFocusCompletedAt = mAutoFocusStartedAt;
             }
         }
     }
@@ -566,11 +997,10 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
      */
 
     public boolean isFlashOn() {
-        if (!useCamera) {
+        if (!isCameraOpen()) {
             return false;
         }
-        Camera.Parameters params = mCamera.getParameters();
-        return params.getFlashMode().equals(Parameters.FLASH_MODE_TORCH);
+        return mFrameSource.isTorchOn();
     }
 
     /**
@@ -581,42 +1011,13 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
      */
 
     public boolean setFlashOn(boolean b) {
-        if (mCamera != null) {
-            try {
-                Camera.Parameters params = mCamera.getParameters();
-                params.setFlashMode(b ? Parameters.FLASH_MODE_TORCH : Parameters.FLASH_MODE_OFF);
-                mCamera.setParameters(params);
-
-                numManualTorchChange++;
-
-                return true;
-            } catch (RuntimeException e) {
-                Log.w(TAG, "Could not set flash mode: " + e);
-            }
+        if (isCameraOpen() && mFrameSource.setTorchOn(b)) {
+            numManualTorchChange++;
+            return true;
         }
         return false;
     }
 
-    private void setCameraDisplayOrientation(Camera mCamera) {
-        int result;
-
-        /* check API level. If upper API level 21, re-calculate orientation. */
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            android.hardware.Camera.CameraInfo info =
-                    new android.hardware.Camera.CameraInfo();
-            android.hardware.Camera.getCameraInfo(0, info);
-            int degrees = getRotationalOffset();
-            int cameraOrientation = info.orientation;
-            result = (cameraOrientation - degrees + 360) % 360;
-        } else {
-            /* if API level is lower than 21, use the default value */
-            result = 90;
-        }
-
-        /*set display orientation*/
-        mCamera.setDisplayOrientation(result);
-    }
-
     /**
      * @see <a
      * href="http://stackoverflow.com/questions/12216148/android-screen-orientation-differs-between-devices">SO
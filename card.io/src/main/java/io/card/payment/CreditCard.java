@@ -63,6 +63,11 @@ public class CreditCard implements Parcelable {
         scanId = UUID.randomUUID().toString();
     }
 
+    // scratch card filled in by the scanner on every frame; no scan id is minted for these.
+    CreditCard(int[] xoff) {
+        this.xoff = xoff;
+    }
+
     public CreditCard(String number, int month, int year, String code, String postalCode, String cardholderName) {
         this.cardNumber = number;
         this.expiryMonth = month;
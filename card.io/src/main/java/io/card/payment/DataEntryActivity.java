@@ -443,6 +443,10 @@ public final class DataEntryActivity extends Activity implements TextWatcher {
             dataIntent.putExtra(CardIOActivity.EXTRA_CAPTURED_CARD_IMAGE,
                     getIntent().getByteArrayExtra(CardIOActivity.EXTRA_CAPTURED_CARD_IMAGE));
         }
+        ScanAnalytics analytics = getIntent().getParcelableExtra(CardIOActivity.EXTRA_SCAN_ANALYTICS);
+        if (analytics != null) {
+            dataIntent.putExtra(CardIOActivity.EXTRA_SCAN_ANALYTICS, analytics);
+        }
         DataEntryActivity.this.setResult(CardIOActivity.RESULT_CARD_INFO, dataIntent);
         finish();
     }
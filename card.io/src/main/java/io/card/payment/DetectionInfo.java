@@ -4,12 +4,22 @@ package io.card.payment;
  * See the file "LICENSE.md" for the full license governing this code.
  */
 
+import java.util.Arrays;
+
 /**
- * This class implements a data structure used to pass card detection details back and forth between
- * java and native code/
+ * This class implements a data structure used to pass card detection details from the scanner to
+ * the UI. The native code reports into a {@link ScanResultBuffer}, which is decoded into this.
+ * <p/>
+ * Instances are reused from frame to frame; call {@link #reset()} before each scan.
  */
 
 class DetectionInfo {
+    // bits used to pass edge state to the UI thread without allocating
+    static final int EDGE_TOP = 1;
+    static final int EDGE_BOTTOM = 1 << 1;
+    static final int EDGE_LEFT = 1 << 2;
+    static final int EDGE_RIGHT = 1 << 3;
+
     public boolean complete;
     public boolean topEdge;
     public boolean bottomEdge;
@@ -22,22 +32,53 @@ class DetectionInfo {
     public CreditCard detectedCard;
 
     public DetectionInfo() {
-        complete = false;
-        
         prediction = new int[16];
+        // scratch card, reused for every frame. See creditCard().
+        detectedCard = new CreditCard(new int[16]);
+        reset();
+    }
+
+    /**
+     * Clear all detection state so this instance can be reused for the next frame. Does not
+     * allocate.
+     */
+    void reset() {
+        complete = false;
+        topEdge = false;
+        bottomEdge = false;
+        leftEdge = false;
+        rightEdge = false;
+        focusScore = 0;
+
+        Arrays.fill(prediction, 0);
         prediction[0] = -1;
         prediction[15] = -1;
 
-        detectedCard = new CreditCard();
-    }
+        expiry_month = 0;
+        expiry_year = 0;
 
-    ;
+        detectedCard.flipped = false;
+        detectedCard.yoff = 0;
+        Arrays.fill(detectedCard.xoff, 0);
+    }
 
     boolean sameEdgesAs(DetectionInfo other) {
         return other.topEdge == this.topEdge && other.bottomEdge == this.bottomEdge
                 && other.leftEdge == this.leftEdge && other.rightEdge == this.rightEdge;
     }
 
+    int edgeMask() {
+        return (topEdge ? EDGE_TOP : 0) | (bottomEdge ? EDGE_BOTTOM : 0)
+                | (leftEdge ? EDGE_LEFT : 0) | (rightEdge ? EDGE_RIGHT : 0);
+    }
+
+    void setEdgeMask(int edges) {
+        topEdge = (edges & EDGE_TOP) != 0;
+        bottomEdge = (edges & EDGE_BOTTOM) != 0;
+        leftEdge = (edges & EDGE_LEFT) != 0;
+        rightEdge = (edges & EDGE_RIGHT) != 0;
+    }
+
     boolean detected() {
         return (topEdge && bottomEdge && rightEdge && leftEdge);
     }
@@ -46,18 +87,29 @@ class DetectionInfo {
         return complete;
     }
 
+    /**
+     * Build the result card from the current prediction. This is only called once a scan is
+     * complete, so it is the point at which the card gets its scan id. The returned card is a copy
+     * and stays valid after this instance is reset.
+     */
     CreditCard creditCard() {
-        String numberStr = new String();
+        StringBuilder numberStr = new StringBuilder(16);
         for (int i = 0; i < 16 && 0 <= prediction[i] && prediction[i] < 10; i++) {
-            numberStr += String.valueOf(prediction[i]);
+            numberStr.append(prediction[i]);
         }
-        detectedCard.cardNumber = numberStr;
+
+        CreditCard card = new CreditCard();
+        card.cardNumber = numberStr.toString();
 
         // set these regardless. They'll just be zeroes if not found.
-        detectedCard.expiryMonth = expiry_month;
-        detectedCard.expiryYear = expiry_year;
-        
-        return detectedCard;
+        card.expiryMonth = expiry_month;
+        card.expiryYear = expiry_year;
+
+        card.flipped = detectedCard.flipped;
+        card.yoff = detectedCard.yoff;
+        System.arraycopy(detectedCard.xoff, 0, card.xoff, 0, card.xoff.length);
+
+        return card;
     }
 
     int numVisibleEdges() {
@@ -0,0 +1,88 @@
+package io.card.payment;
+
+/* DirectFramePool.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fixed set of direct {@link ByteBuffer}s, each holding one NV21 frame.
+ * <p/>
+ * Direct buffers live outside the Java heap, so the native recognizer reads them in place via
+ * <code>GetDirectBufferAddress</code> without the copy that array access may cost. They are
+ * expensive to allocate, so they are created once and recycled.
+ */
+class DirectFramePool {
+
+    private final ByteBuffer[] mFree;
+    private final int mFrameSize;
+    private int mNumFree;
+
+    DirectFramePool(int width, int height, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        mFrameSize = frameSize(width, height);
+        mFree = new ByteBuffer[depth];
+        for (int i = 0; i < depth; i++) {
+            mFree[i] = ByteBuffer.allocateDirect(mFrameSize).order(ByteOrder.nativeOrder());
+        }
+        mNumFree = depth;
+    }
+
+    /**
+     * Size in bytes of an NV21 frame: a full resolution luma plane followed by interleaved,
+     * quarter resolution chroma.
+     */
+    static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    int getFrameSize() {
+        return mFrameSize;
+    }
+
+    int getDepth() {
+        return mFree.length;
+    }
+
+    /**
+     * @return a cleared buffer, or <code>null</code> if every buffer is in use.
+     */
+    synchronized ByteBuffer acquire() {
+        if (mNumFree == 0) {
+            return null;
+        }
+        ByteBuffer frame = mFree[--mNumFree];
+        mFree[mNumFree] = null;
+        frame.clear();
+        return frame;
+    }
+
+    /**
+     * Wait until a buffer is available.
+     */
+    synchronized ByteBuffer acquireBlocking() throws InterruptedException {
+        while (mNumFree == 0) {
+            wait();
+        }
+        return acquire();
+    }
+
+    synchronized void release(ByteBuffer frame) {
+        if (frame == null || !frame.isDirect() || frame.capacity() != mFrameSize) {
+            throw new IllegalArgumentException("frame does not belong to this pool");
+        }
+        if (mNumFree == mFree.length) {
+            throw new IllegalStateException("frame released twice");
+        }
+        mFree[mNumFree++] = frame;
+        notifyAll();
+    }
+
+    synchronized int getNumFree() {
+        return mNumFree;
+    }
+}
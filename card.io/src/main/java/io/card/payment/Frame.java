@@ -0,0 +1,154 @@
+package io.card.payment;
+
+/* Frame.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One YUV 4:2:0 frame on its way from a {@link FrameSource} to the recognizer: either an NV21
+ * array (the Camera API) or three planes in direct buffers (a <code>YUV_420_888</code> image from
+ * Camera2). Either way, the recognizer reads the pixels where they are.
+ * <p/>
+ * Frames are reused by the source that delivered them. Whoever receives one hands it back with
+ * {@link #release()} once the recognizer is done reading it.
+ */
+class Frame {
+
+    /**
+     * Takes back the frames it handed out.
+     */
+    interface Owner {
+        void recycle(Frame frame);
+    }
+
+    private final Owner mOwner;
+
+    private int mWidth;
+    private int mHeight;
+
+    private byte[] mData;
+
+    private ByteBuffer mY;
+    private ByteBuffer mCb;
+    private ByteBuffer mCr;
+    private int mYRowStride;
+    private int mChromaRowStride;
+    private int mChromaPixelStride;
+
+    // whatever the owner needs to take the frame back, e.g. the image the planes belong to
+    private Object mTag;
+
+    /**
+     * @param owner what {@link #release()} hands the frame back to; may be <code>null</code> for
+     *              frames nobody needs back.
+     */
+    Frame(Owner owner) {
+        mOwner = owner;
+    }
+
+    /**
+     * Point the frame at an NV21 array.
+     */
+    Frame setNv21(byte[] data, int width, int height) {
+        clear();
+        mData = data;
+        mWidth = width;
+        mHeight = height;
+        return this;
+    }
+
+    /**
+     * Point the frame at the planes of a YUV 4:2:0 image, as laid out by
+     * {@link android.media.Image.Plane}: <code>cb</code> is the U plane and <code>cr</code> the
+     * V plane. See {@link NativeRecognizer#nScanFramePlanes}.
+     */
+    Frame setPlanes(ByteBuffer y, int yRowStride, ByteBuffer cb, ByteBuffer cr,
+                    int chromaRowStride, int chromaPixelStride, int width, int height) {
+        clear();
+        mY = y;
+        mCb = cb;
+        mCr = cr;
+        mYRowStride = yRowStride;
+        mChromaRowStride = chromaRowStride;
+        mChromaPixelStride = chromaPixelStride;
+        mWidth = width;
+        mHeight = height;
+        return this;
+    }
+
+    /**
+     * Forget the pixels, but not the tag.
+     */
+    void clear() {
+        mData = null;
+        mY = null;
+        mCb = null;
+        mCr = null;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the NV21 array, or <code>null</code> if the frame is held in planes.
+     */
+    byte[] getData() {
+        return mData;
+    }
+
+    Object getTag() {
+        return mTag;
+    }
+
+    void setTag(Object tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Hand the frame back to its source. The frame must not be used afterwards.
+     */
+    void release() {
+        if (mOwner != null) {
+            mOwner.recycle(this);
+        }
+    }
+
+    /**
+     * Scan the frame with {@link NativeRecognizer#nScanFrame} or its counterpart for planes.
+     */
+    void scan(long handle, int orientation, ByteBuffer result, Bitmap resultBitmap,
+              boolean scanExpiry) {
+        if (mData != null) {
+            NativeRecognizer.nScanFrame(handle, mData, mWidth, mHeight, orientation, result,
+                    resultBitmap, scanExpiry);
+        } else {
+            NativeRecognizer.nScanFramePlanes(handle, mY, mYRowStride, mCb, mCr, mChromaRowStride,
+                    mChromaPixelStride, mWidth, mHeight, orientation, result, resultBitmap,
+                    scanExpiry);
+        }
+    }
+
+    /**
+     * Detect the card in the frame with {@link NativeRecognizer#nDetectFrame} or its counterpart
+     * for planes.
+     */
+    boolean detect(long handle, int slot, int orientation, ByteBuffer result,
+                   boolean wantCardImage) {
+        if (mData != null) {
+            return NativeRecognizer.nDetectFrame(handle, slot, mData, mWidth, mHeight, orientation,
+                    result, wantCardImage);
+        }
+        return NativeRecognizer.nDetectFramePlanes(handle, slot, mY, mYRowStride, mCb, mCr,
+                mChromaRowStride, mChromaPixelStride, mWidth, mHeight, orientation, result,
+                wantCardImage);
+    }
+}
@@ -0,0 +1,149 @@
+package io.card.payment;
+
+/* FrameQueue.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * Bounded hand-off of preview frames from the camera callback thread to the scan worker.
+ * <p/>
+ * The queue is a fixed ring, so offering and taking frames does not allocate. When the queue is
+ * full, the {@link DropPolicy} decides which frame is given up. Frames that are given up are
+ * returned to the caller so their buffers can be handed back to the camera.
+ *
+ * @param <T> the type of frames queued, e.g. {@link Frame}.
+ */
+class FrameQueue<T> {
+
+    enum DropPolicy {
+        /**
+         * Evict the oldest queued frame in favor of the new one. Keeps the scanner on the most
+         * recent image, which is what the user is currently holding up.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Reject the new frame and keep what is already queued. This matches the historic
+         * behavior of skipping frames while a scan is in progress.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Wait for the worker to make room. Never use this on the camera callback thread; it is
+         * intended for frame sources where every frame must be scanned.
+         */
+        BLOCK
+    }
+
+    private final Object[] mFrames;
+    private final DropPolicy mDropPolicy;
+
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+
+    FrameQueue(int capacity, DropPolicy dropPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mFrames = new Object[capacity];
+        mDropPolicy = dropPolicy;
+    }
+
+    DropPolicy getDropPolicy() {
+        return mDropPolicy;
+    }
+
+    int getCapacity() {
+        return mFrames.length;
+    }
+
+    /**
+     * Queue a frame for scanning.
+     *
+     * @return the frame that was dropped to respect the capacity (either <code>frame</code>
+     * itself or an evicted older frame), or <code>null</code> if nothing was dropped.
+     */
+    synchronized T offer(T frame) {
+        if (mClosed) {
+            return frame;
+        }
+
+        T dropped = null;
+        if (mCount == mFrames.length) {
+            switch (mDropPolicy) {
+                case DROP_NEWEST:
+                    return frame;
+                case DROP_OLDEST:
+                    dropped = frameAt(mHead);
+                    mFrames[mHead] = null;
+                    mHead = (mHead + 1) % mFrames.length;
+                    mCount--;
+                    break;
+                case BLOCK:
+                    while (mCount == mFrames.length && !mClosed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return frame;
+                        }
+                    }
+                    if (mClosed) {
+                        return frame;
+                    }
+                    break;
+            }
+        }
+
+        mFrames[(mHead + mCount) % mFrames.length] = frame;
+        mCount++;
+        notifyAll();
+        return dropped;
+    }
+
+    /**
+     * Wait for the next frame.
+     *
+     * @return the oldest queued frame, or <code>null</code> once the queue has been closed.
+     */
+    synchronized T take() throws InterruptedException {
+        while (mCount == 0 && !mClosed) {
+            wait();
+        }
+        if (mClosed) {
+            return null;
+        }
+
+        T frame = frameAt(mHead);
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mCount--;
+        notifyAll();
+        return frame;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T frameAt(int index) {
+        // only ever holds what was offered
+        return (T) mFrames[index];
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Discard every queued frame and wake up all waiting threads. Subsequent offers are rejected
+     * and {@link #take()} returns <code>null</code>.
+     */
+    synchronized void close() {
+        mClosed = true;
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = null;
+        }
+        mHead = 0;
+        mCount = 0;
+        notifyAll();
+    }
+}
@@ -0,0 +1,80 @@
+package io.card.payment;
+
+/* FrameSource.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.view.SurfaceHolder;
+
+/**
+ * A camera backend feeding {@link CardScanner}: {@link Camera1FrameSource} for the Camera API,
+ * {@link Camera2FrameSource} for Camera2. The scanner only sees {@link Frame}s, so both share the
+ * same scan pipeline.
+ * <p/>
+ * A source is opened, previews while the scanner's surface exists, and is closed when the
+ * scanner pauses; it may be opened again afterwards. {@link #open(Listener, int)} is called on a
+ * background thread, and may be followed there by {@link #close()} if the scanner paused in the
+ * meantime; all other methods are called on the main thread, and only once the open returned.
+ */
+interface FrameSource {
+
+    interface Listener {
+        /**
+         * A frame arrived. Called on a thread of the source's choosing, so this must not block.
+         * The listener owns the frame until it calls {@link Frame#release()}.
+         */
+        void onFrame(Frame frame);
+
+        /**
+         * A focus pass started by {@link #autoFocus()} finished, on any thread.
+         */
+        void onAutoFocus(boolean success);
+
+        /**
+         * The camera was lost, or the preview could not be started, after {@link #open} returned
+         * <code>true</code>. Called on any thread. The source delivers no more frames and should be
+         * closed.
+         */
+        void onCameraError();
+    }
+
+    /**
+     * Acquire the camera. May block for a while if the camera is busy; it is called off the main
+     * thread for that reason.
+     *
+     * @param displayRotation rotation of the display in degrees, for sources that orient the
+     *                        preview themselves.
+     * @return <code>false</code> if the camera could not be opened.
+     */
+    boolean open(Listener listener, int displayRotation);
+
+    boolean isOpen();
+
+    /**
+     * Show the preview on <code>holder</code>, whose surface must exist, and start delivering
+     * frames to the listener.
+     */
+    boolean startPreview(SurfaceHolder holder);
+
+    void stopPreview();
+
+    /**
+     * Release the camera. Must only be called once nothing reads the frames handed out any more;
+     * the source takes back those that weren't released.
+     */
+    void close();
+
+    /**
+     * Start a focus pass, reported to {@link Listener#onAutoFocus(boolean)}.
+     *
+     * @return <code>false</code> if none could be started.
+     */
+    boolean autoFocus();
+
+    boolean isTorchOn();
+
+    /**
+     * @return <code>true</code> if the torch was set.
+     */
+    boolean setTorchOn(boolean on);
+}
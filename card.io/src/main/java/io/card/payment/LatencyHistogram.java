@@ -0,0 +1,87 @@
+package io.card.payment;
+
+/* LatencyHistogram.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * Distribution of latencies, counted in fixed buckets.
+ * <p/>
+ * There are four buckets per power of two microseconds: bucket <code>b</code> starts at
+ * <code>2^(b/4) * (1 + (b%4)/4)</code> microseconds. That gives a resolution of 25% or better
+ * up to about 4 seconds, with a fixed size and no allocation when recording. The layout MUST
+ * match <code>latencyBucket()</code> in nativeRecognizer.cpp.
+ */
+public final class LatencyHistogram {
+    static final int NUM_BUCKETS = 88;
+
+    private final int[] mCounts;
+    private final long mTotalCount;
+
+    LatencyHistogram(int[] counts, int offset) {
+        mCounts = new int[NUM_BUCKETS];
+        System.arraycopy(counts, offset, mCounts, 0, NUM_BUCKETS);
+        long total = 0;
+        for (int count : mCounts) {
+            total += count;
+        }
+        mTotalCount = total;
+    }
+
+    /**
+     * Index of the bucket that <code>micros</code> is counted in.
+     */
+    static int bucketFor(long micros) {
+        if (micros < 1) {
+            return 0;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+        int bucket = 4 * msb + (int) (((micros << 2) >> msb) & 3);
+        return Math.min(bucket, NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Smallest latency, in microseconds, counted in <code>bucket</code>.
+     */
+    static long bucketLowerBoundMicros(int bucket) {
+        int msb = bucket / 4;
+        long frac = bucket % 4;
+        return (1L << msb) + ((frac << msb) >> 2);
+    }
+
+    /**
+     * @return the number of latencies recorded.
+     */
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the latency, in microseconds, that <code>percentile</code> percent of the recorded
+     * latencies are below, rounded up to the end of its bucket. 0 if nothing was recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mTotalCount * Math.max(0, Math.min(100, percentile)) / 100);
+        rank = Math.max(1, rank);
+
+        long seen = 0;
+        for (int b = 0; b < NUM_BUCKETS; b++) {
+            seen += mCounts[b];
+            if (seen >= rank) {
+                return bucketLowerBoundMicros(b + 1);
+            }
+        }
+        return bucketLowerBoundMicros(NUM_BUCKETS);
+    }
+
+    /**
+     * Same as {@link #getPercentileMicros(double)}, in milliseconds.
+     */
+    public float getPercentileMillis(double percentile) {
+        return getPercentileMicros(percentile) / 1000f;
+    }
+}
@@ -0,0 +1,157 @@
+package io.card.payment;
+
+/* NativeRecognizer.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JNI entry points of the card.io recognizer (libcardioRecognizer), shared by {@link CardScanner}
+ * and {@link CardImageScanner}.
+ * <p/>
+ * The native libraries are loaded by CardScanner's static initializer, so check
+ * {@link CardScanner#processorSupported()} before calling any of these.
+ * <p/>
+ * Every handle returned by {@link #nSetup(boolean, float, int)} is an independent recognizer.
+ * Different handles may be used on different threads at the same time, but a single handle must
+ * only be used by one thread at a time.
+ */
+final class NativeRecognizer {
+
+    private NativeRecognizer() {
+    }
+
+    /**
+     * Creates a native scanner context.
+     *
+     * @return the handle passed to all other per-scanner native methods.
+     */
+    static native long nSetup(boolean shouldDetectOnly, float minFocusScore, int unBlur);
+
+    /**
+     * Starts a new scanning session on <code>handle</code>, forgetting all previous frames.
+     */
+    static native void nResetAnalytics(long handle);
+
+    /**
+     * If <code>defer</code> is true, the card image is no longer rendered into the result bitmap
+     * for every frame with a card. Instead, the sharpest such frame is kept and rendered once, when
+     * the scan completes (or, in detect-only mode, when a card is found). The bitmap is left
+     * untouched by every other frame.
+     */
+    static native void nSetDeferCardImage(long handle, boolean defer);
+
+    /**
+     * Enables a cheap pre-filter ahead of the focus score: frames whose mean local contrast,
+     * sampled every <code>decimation</code> pixels of the guide frame, is below
+     * <code>minScore</code> are rejected without looking at them any further. Off if either is
+     * <code>0</code>, which is the default.
+     */
+    static native void nSetPrefilter(long handle, int decimation, float minScore);
+
+    /**
+     * If <code>enabled</code>, once a card has been found its corners are followed from frame to
+     * frame with a narrow edge search, and full edge detection only runs when that loses the card
+     * (and every few frames regardless). Off by default.
+     */
+    static native void nSetCornerTracking(long handle, boolean enabled);
+
+    /**
+     * If <code>enabled</code>, frames whose guide frame looks just like that of the last frame
+     * that went through recognition (by a coarse fingerprint of its luma) are not scanned, except
+     * for every few in a row. Has no effect in detect-only mode. Off by default.
+     */
+    static native void nSetSkipSimilarFrames(long handle, boolean enabled);
+
+    /**
+     * If <code>budget</code> is less than <code>window</code>, frames with a card are not
+     * recognized straight away. Their warped card is kept, and once <code>window</code> of them
+     * have been seen, only the <code>budget</code> best (by focus, glare, exposure and how face on
+     * the card is) are recognized. Pass <code>0, 0</code> to recognize every frame, the default.
+     */
+    static native void nSetRecognitionBudget(long handle, int window, int budget);
+
+    static native void nGetGuideFrame(int orientation, int previewWidth, int previewHeight, Rect r);
+
+    /**
+     * Scans one NV21 frame. The outcome is written to <code>result</code>, which must be the
+     * buffer of a {@link ScanResultBuffer}. <code>resultBitmap</code> may be <code>null</code>
+     * if no card image is wanted.
+     */
+    static native void nScanFrame(long handle, byte[] data, int frameWidth, int frameHeight,
+                                  int orientation, ByteBuffer result, Bitmap resultBitmap,
+                                  boolean scanExpiry);
+
+    /**
+     * Same as {@link #nScanFrame}, for a frame held in a direct buffer.
+     */
+    static native void nScanFrameDirect(long handle, ByteBuffer data, int frameWidth,
+                                        int frameHeight, int orientation, ByteBuffer result,
+                                        Bitmap resultBitmap, boolean scanExpiry);
+
+    /**
+     * Same as {@link #nScanFrame}, for a YUV 4:2:0 frame whose planes are held in direct buffers,
+     * such as the planes of a <code>YUV_420_888</code> {@link android.media.Image}. The planes are
+     * read in place, so rows may be padded (<code>yRowStride</code> and
+     * <code>chromaRowStride</code>) and the chroma planes may be interleaved either way round
+     * (<code>chromaPixelStride</code> 2) or separate (1).
+     */
+    static native void nScanFramePlanes(long handle, ByteBuffer y, int yRowStride, ByteBuffer cb,
+                                        ByteBuffer cr, int chromaRowStride, int chromaPixelStride,
+                                        int frameWidth, int frameHeight, int orientation,
+                                        ByteBuffer result, Bitmap resultBitmap, boolean scanExpiry);
+
+    /**
+     * Number of pipeline slots available to {@link #nDetectFrame}.
+     */
+    static final int PIPELINE_SLOTS = 2;
+
+    /**
+     * First stage of {@link #nScanFrame}: focus, edges and the warp of the card. Writes what it
+     * found to <code>result</code>. If there is a card to recognize, the frame is left in
+     * <code>slot</code> for {@link #nRecognizeFrame} and this returns true. Either way,
+     * <code>data</code> is no longer needed once this returns.
+     * <p/>
+     * Detection and recognition may run on different threads, but each on one thread at a time,
+     * and a slot must not be detected into while it is being recognized.
+     */
+    static native boolean nDetectFrame(long handle, int slot, byte[] data, int frameWidth,
+                                       int frameHeight, int orientation, ByteBuffer result,
+                                       boolean wantCardImage);
+
+    /**
+     * Same as {@link #nDetectFrame}, for a frame held in planes (see {@link #nScanFramePlanes}).
+     */
+    static native boolean nDetectFramePlanes(long handle, int slot, ByteBuffer y, int yRowStride,
+                                             ByteBuffer cb, ByteBuffer cr, int chromaRowStride,
+                                             int chromaPixelStride, int frameWidth,
+                                             int frameHeight, int orientation, ByteBuffer result,
+                                             boolean wantCardImage);
+
+    /**
+     * Second stage of {@link #nScanFrame}, for the frame {@link #nDetectFrame} left in
+     * <code>slot</code>. Writes the whole outcome of the frame to <code>result</code>.
+     */
+    static native void nRecognizeFrame(long handle, int slot, ByteBuffer result,
+                                       Bitmap resultBitmap, boolean scanExpiry);
+
+    static native int nGetNumFramesScanned(long handle);
+
+    /**
+     * Copy the per-stage latency histograms of <code>handle</code> into <code>counts</code>,
+     * which must hold at least {@link ScanMetrics#NUM_COUNTS} entries. See {@link ScanMetrics}.
+     */
+    static native void nGetStageLatencies(long handle, int[] counts);
+
+    /**
+     * Number of scratch images <code>handle</code> has allocated so far. Frames reuse these, so
+     * once a few frames have been scanned this should stop changing. For tests.
+     */
+    static native long nGetScratchAllocations(long handle);
+
+    static native void nCleanup(long handle);
+}
@@ -0,0 +1,167 @@
+package io.card.payment;
+
+/* PreviewBufferPool.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * A fixed ring of preview callback buffers shared between the camera and the scanner.
+ * <p/>
+ * Each buffer is sized exactly for one preview frame (<code>w * h * 3 / 2</code> bytes for NV21)
+ * and is always owned by exactly one party: the pool itself, the camera (registered with
+ * {@link Camera#addCallbackBuffer(byte[])} and waiting to be filled), or the scanner (delivered
+ * by the camera and queued or being scanned). Registering several buffers lets the camera fill
+ * the next frame while the previous one is still being recognized.
+ * <p/>
+ * The pool also counts how often each buffer is handed back to the camera, which is useful for
+ * spotting buffers that get stuck on the scanner side.
+ */
+class PreviewBufferPool {
+
+    enum Owner {
+        POOL, CAMERA, SCANNER
+    }
+
+    private final byte[][] mBuffers;
+    private final Owner[] mOwners;
+    private final int[] mReuseCounts;
+    private final int mBufferSize;
+
+    PreviewBufferPool(int width, int height, int imageFormat, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        mBufferSize = bufferSize(width, height, imageFormat);
+        mBuffers = new byte[depth][];
+        mOwners = new Owner[depth];
+        mReuseCounts = new int[depth];
+        for (int i = 0; i < depth; i++) {
+            mBuffers[i] = new byte[mBufferSize];
+            mOwners[i] = Owner.POOL;
+        }
+    }
+
+    /**
+     * Size in bytes of a single frame. The camera rejects callback buffers that are too small,
+     * and anything larger is wasted.
+     */
+    static int bufferSize(int width, int height, int imageFormat) {
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(imageFormat);
+        if (bitsPerPixel <= 0) {
+            // unknown format; assume NV21, the camera default.
+            bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
+        }
+        return width * height * bitsPerPixel / 8;
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    int getDepth() {
+        return mBuffers.length;
+    }
+
+    /**
+     * Register every buffer the pool currently holds with the camera.
+     */
+    synchronized void attach(Camera camera) {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mOwners[i] == Owner.POOL) {
+                camera.addCallbackBuffer(mBuffers[i]);
+                mOwners[i] = Owner.CAMERA;
+            }
+        }
+    }
+
+    /**
+     * Take every buffer back into the pool. Call this once the camera has been released, since a
+     * released camera silently forgets its callback buffers.
+     */
+    synchronized void detach() {
+        for (int i = 0; i < mBuffers.length; i++) {
+            mOwners[i] = Owner.POOL;
+        }
+    }
+
+    /**
+     * Record that the camera delivered <code>data</code> to the scanner.
+     *
+     * @return <code>false</code> if <code>data</code> does not belong to this pool.
+     */
+    synchronized boolean onFrameDelivered(byte[] data) {
+        int index = indexOf(data);
+        if (index < 0) {
+            return false;
+        }
+        mOwners[index] = Owner.SCANNER;
+        return true;
+    }
+
+    /**
+     * Give a buffer back to the camera once the scanner is done with it. With no camera
+     * (<code>null</code>), the buffer stays in the pool until the next {@link #attach(Camera)}.
+     *
+     * @return <code>false</code> if <code>data</code> does not belong to this pool.
+     */
+    synchronized boolean recycle(Camera camera, byte[] data) {
+        int index = indexOf(data);
+        if (index < 0) {
+            return false;
+        }
+        if (camera != null && mOwners[index] != Owner.POOL) {
+            camera.addCallbackBuffer(data);
+            mOwners[index] = Owner.CAMERA;
+            mReuseCounts[index]++;
+        } else {
+            mOwners[index] = Owner.POOL;
+        }
+        return true;
+    }
+
+    byte[] getBuffer(int index) {
+        return mBuffers[index];
+    }
+
+    synchronized Owner getOwner(int index) {
+        return mOwners[index];
+    }
+
+    synchronized int countOwnedBy(Owner owner) {
+        int count = 0;
+        for (Owner o : mOwners) {
+            if (o == owner) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return how many times the buffer at <code>index</code> has been returned to the camera.
+     */
+    synchronized int getReuseCount(int index) {
+        return mReuseCounts[index];
+    }
+
+    synchronized int[] getReuseCounts() {
+        return mReuseCounts.clone();
+    }
+
+    /**
+     * @return the index of <code>data</code> in the pool, or <code>-1</code> if it isn't one of
+     * its buffers.
+     */
+    int indexOf(byte[] data) {
+        // identity lookup; the ring is only a handful of buffers deep.
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] == data) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
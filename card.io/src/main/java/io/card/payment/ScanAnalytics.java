@@ -0,0 +1,217 @@
+package io.card.payment;
+
+/* ScanAnalytics.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Locale;
+
+/**
+ * How a scan went: how long it took to get going and to finish, what happened to the frames, and
+ * how the user and scanner interacted with the camera.
+ * <p/>
+ * Returned in the result Intent of {@link CardIOActivity} under
+ * {@link CardIOActivity#EXTRA_SCAN_ANALYTICS} whenever a card was scanned:
+ * <pre>
+ * ScanAnalytics analytics = data.getParcelableExtra(CardIOActivity.EXTRA_SCAN_ANALYTICS);
+ * </pre>
+ * Times are in milliseconds since scanning started, measured with a monotonic clock. A stage that
+ * was never reached is reported as {@link #NOT_REACHED}.
+ */
+public final class ScanAnalytics implements Parcelable {
+
+    /**
+     * Value of a time to a point the scan never reached.
+     */
+    public static final long NOT_REACHED = -1;
+
+    private final long mTimeToFirstFrame;
+    private final long mTimeToEdgeLock;
+    private final long mTimeToResult;
+    private final long mElapsed;
+    private final int mFramesScanned;
+    private final int mFramesSkipped;
+    private final int mFramesOutOfFocus;
+    private final int mFramesRejectedEarly;
+    private final int mFramesUnchanged;
+    private final int mManualRefocusings;
+    private final int mAutoRefocusings;
+    private final int mTorchChanges;
+    private final ScanMetrics mStageLatencies;
+
+    ScanAnalytics(long timeToFirstFrame, long timeToEdgeLock, long timeToResult, long elapsed,
+                  int framesScanned, int framesSkipped, int framesOutOfFocus,
+                  int framesRejectedEarly, int framesUnchanged, int manualRefocusings,
+                  int autoRefocusings, int torchChanges, ScanMetrics stageLatencies) {
+        mTimeToFirstFrame = timeToFirstFrame;
+        mTimeToEdgeLock = timeToEdgeLock;
+        mTimeToResult = timeToResult;
+        mElapsed = elapsed;
+        mFramesScanned = framesScanned;
+        mFramesSkipped = framesSkipped;
+        mFramesOutOfFocus = framesOutOfFocus;
+        mFramesRejectedEarly = framesRejectedEarly;
+        mFramesUnchanged = framesUnchanged;
+        mManualRefocusings = manualRefocusings;
+        mAutoRefocusings = autoRefocusings;
+        mTorchChanges = torchChanges;
+        mStageLatencies = stageLatencies;
+    }
+
+    private ScanAnalytics(Parcel src) {
+        mTimeToFirstFrame = src.readLong();
+        mTimeToEdgeLock = src.readLong();
+        mTimeToResult = src.readLong();
+        mElapsed = src.readLong();
+        mFramesScanned = src.readInt();
+        mFramesSkipped = src.readInt();
+        mFramesOutOfFocus = src.readInt();
+        mFramesRejectedEarly = src.readInt();
+        mFramesUnchanged = src.readInt();
+        mManualRefocusings = src.readInt();
+        mAutoRefocusings = src.readInt();
+        mTorchChanges = src.readInt();
+        mStageLatencies = src.readParcelable(ScanMetrics.class.getClassLoader());
+    }
+
+    /**
+     * @return time until the camera delivered its first preview frame.
+     */
+    public long getTimeToFirstFrameMillis() {
+        return mTimeToFirstFrame;
+    }
+
+    /**
+     * @return time until all four edges of the card were first found in one frame.
+     */
+    public long getTimeToEdgeLockMillis() {
+        return mTimeToEdgeLock;
+    }
+
+    /**
+     * @return time until the card was read.
+     */
+    public long getTimeToResultMillis() {
+        return mTimeToResult;
+    }
+
+    /**
+     * @return time from the start of scanning until these analytics were taken.
+     */
+    public long getElapsedMillis() {
+        return mElapsed;
+    }
+
+    /**
+     * @return frames passed to the recognizer.
+     */
+    public int getFramesScanned() {
+        return mFramesScanned;
+    }
+
+    /**
+     * @return frames dropped because the recognizer was still busy with an earlier one.
+     */
+    public int getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    /**
+     * @return scanned frames that were too blurry to look for a card in.
+     */
+    public int getFramesOutOfFocus() {
+        return mFramesOutOfFocus;
+    }
+
+    /**
+     * @return out of focus frames that were rejected by the cheap pre-filter, before the full
+     * focus score. Included in {@link #getFramesOutOfFocus()}.
+     */
+    public int getFramesRejectedEarly() {
+        return mFramesRejectedEarly;
+    }
+
+    /**
+     * @return scanned frames that looked just like the last recognized one, and so weren't
+     * recognized again. Included in {@link #getFramesScanned()}.
+     */
+    public int getFramesUnchanged() {
+        return mFramesUnchanged;
+    }
+
+    /**
+     * @return autofocus cycles started by the user tapping the preview.
+     */
+    public int getManualRefocusings() {
+        return mManualRefocusings;
+    }
+
+    /**
+     * @return autofocus cycles started by the scanner because frames were out of focus.
+     */
+    public int getAutoRefocusings() {
+        return mAutoRefocusings;
+    }
+
+    /**
+     * @return number of times the torch was switched on or off.
+     */
+    public int getTorchChanges() {
+        return mTorchChanges;
+    }
+
+    /**
+     * @return latency distribution of each stage of the per-frame pipeline.
+     */
+    public ScanMetrics getStageLatencies() {
+        return mStageLatencies;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mTimeToFirstFrame);
+        dest.writeLong(mTimeToEdgeLock);
+        dest.writeLong(mTimeToResult);
+        dest.writeLong(mElapsed);
+        dest.writeInt(mFramesScanned);
+        dest.writeInt(mFramesSkipped);
+        dest.writeInt(mFramesOutOfFocus);
+        dest.writeInt(mFramesRejectedEarly);
+        dest.writeInt(mFramesUnchanged);
+        dest.writeInt(mManualRefocusings);
+        dest.writeInt(mAutoRefocusings);
+        dest.writeInt(mTorchChanges);
+        dest.writeParcelable(mStageLatencies, flags);
+    }
+
+    public static final Parcelable.Creator<ScanAnalytics> CREATOR = new Parcelable.Creator<ScanAnalytics>() {
+
+        @Override
+        public ScanAnalytics createFromParcel(Parcel source) {
+            return new ScanAnalytics(source);
+        }
+
+        @Override
+        public ScanAnalytics[] newArray(int size) {
+            return new ScanAnalytics[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ScanAnalytics{firstFrame=%dms edgeLock=%dms result=%dms "
+                        + "elapsed=%dms scanned=%d skipped=%d outOfFocus=%d rejectedEarly=%d "
+                        + "unchanged=%d refocus=%d/%d torch=%d}",
+                mTimeToFirstFrame, mTimeToEdgeLock, mTimeToResult, mElapsed, mFramesScanned,
+                mFramesSkipped, mFramesOutOfFocus, mFramesRejectedEarly, mFramesUnchanged,
+                mManualRefocusings, mAutoRefocusings, mTorchChanges);
+    }
+}
@@ -0,0 +1,137 @@
+package io.card.payment;
+
+/* ScanMetrics.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of how long each stage of the native scan pipeline took, per frame, over the lifetime
+ * of a scanner.
+ * <p/>
+ * Latencies are measured natively with a monotonic clock and counted into a
+ * {@link LatencyHistogram} per stage, so recording them costs next to nothing per frame. Stages
+ * that a frame doesn't reach (e.g. edge detection for a blurry frame) are not counted for it.
+ */
+public final class ScanMetrics implements Parcelable {
+
+    /**
+     * A stage of the per-frame pipeline. The order MUST match <code>ScanStage</code> in
+     * nativeRecognizer.cpp.
+     */
+    public enum Stage {
+        /** Cheap focus estimate on a decimated view of the luma plane. Every frame, if enabled. */
+        PREFILTER,
+        /** Block-mean fingerprint of the guide frame. Frames that pass the pre-filter, if enabled. */
+        FINGERPRINT,
+        /** Focus score of the luma plane. Frames not rejected by an earlier stage. */
+        FOCUS_SCORE,
+        /** Splitting the chroma plane into Cb and Cr. Frames in focus. */
+        DEINTERLEAVE,
+        /** Following the card from the previous frame. Frames in focus, if tracking is enabled. */
+        TRACK_CORNERS,
+        /** Finding the card edges. Frames in focus that tracking didn't find the card in. */
+        DETECT_EDGES,
+        /** Warping the card to a flat rectangle. Frames with a card. */
+        TRANSFORM_CARD,
+        /** Digit segmentation and recognition. Frames with a card. */
+        RECOGNIZE,
+        /** Rendering the card image shown to the user. Frames with a card. */
+        CARD_IMAGE,
+        /**
+         * The whole frame. Every frame; when detection and recognition are pipelined, from the start
+         * of detection to the end of recognition, waiting between the two included.
+         */
+        FRAME
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    static final int NUM_COUNTS = STAGES.length * LatencyHistogram.NUM_BUCKETS;
+
+    private final int[] mCounts;
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+
+    /**
+     * @param counts the histogram counts of each stage, stage by stage, as written by
+     *               {@link NativeRecognizer#nGetStageLatencies(long, int[])}.
+     */
+    ScanMetrics(int[] counts) {
+        mCounts = counts;
+        for (int i = 0; i < STAGES.length; i++) {
+            mHistograms[i] = new LatencyHistogram(counts, i * LatencyHistogram.NUM_BUCKETS);
+        }
+    }
+
+    /**
+     * Read the current metrics of a native scanner.
+     */
+    static ScanMetrics fromNative(long nativeHandle) {
+        int[] counts = new int[NUM_COUNTS];
+        if (nativeHandle != 0) {
+            NativeRecognizer.nGetStageLatencies(nativeHandle, counts);
+        }
+        return new ScanMetrics(counts);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public float getP50Millis(Stage stage) {
+        return getHistogram(stage).getPercentileMillis(50);
+    }
+
+    public float getP95Millis(Stage stage) {
+        return getHistogram(stage).getPercentileMillis(95);
+    }
+
+    public float getP99Millis(Stage stage) {
+        return getHistogram(stage).getPercentileMillis(99);
+    }
+
+    private ScanMetrics(Parcel src) {
+        this(src.createIntArray());
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeIntArray(mCounts);
+    }
+
+    public static final Parcelable.Creator<ScanMetrics> CREATOR = new Parcelable.Creator<ScanMetrics>() {
+
+        @Override
+        public ScanMetrics createFromParcel(Parcel source) {
+            return new ScanMetrics(source);
+        }
+
+        @Override
+        public ScanMetrics[] newArray(int size) {
+            return new ScanMetrics[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ScanMetrics{");
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = getHistogram(stage);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, "\n  %s: n=%d p50=%.2fms p95=%.2fms p99=%.2fms",
+                    stage, histogram.getCount(), getP50Millis(stage), getP95Millis(stage),
+                    getP99Millis(stage)));
+        }
+        return sb.append("\n}").toString();
+    }
+}
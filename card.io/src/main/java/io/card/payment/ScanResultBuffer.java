@@ -0,0 +1,114 @@
+package io.card.payment;
+
+/* ScanResultBuffer.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Direct buffer that the native recognizer fills with the outcome of a frame in a single write.
+ * <p/>
+ * Replaces setting the fields of a {@link DetectionInfo} one JNI call at a time. Values are only
+ * decoded when they are read, and the card digits only once a scan is complete.
+ * <p/>
+ * The layout MUST match <code>ScanFrameResult</code> in nativeRecognizer.cpp: native byte order,
+ * 32 bit fields, in the order of the <code>*_OFFSET</code> constants below.
+ */
+class ScanResultBuffer {
+    static final int MAX_DIGITS = 16;
+
+    // flags; the edge bits are the same as DetectionInfo's
+    static final int FLAG_CARD_DETECTED = 1 << 4;
+    static final int FLAG_COMPLETE = 1 << 5;
+    static final int FLAG_REJECTED_EARLY = 1 << 6;
+    static final int FLAG_UNCHANGED = 1 << 7;
+    private static final int EDGE_MASK = DetectionInfo.EDGE_TOP | DetectionInfo.EDGE_BOTTOM
+            | DetectionInfo.EDGE_LEFT | DetectionInfo.EDGE_RIGHT;
+
+    // byte offsets
+    static final int FLAGS_OFFSET = 0;
+    static final int FOCUS_SCORE_OFFSET = 4;
+    static final int NUM_DIGITS_OFFSET = 8;
+    static final int EXPIRY_MONTH_OFFSET = 12;
+    static final int EXPIRY_YEAR_OFFSET = 16;
+    static final int Y_OFFSET_OFFSET = 20;
+    static final int DIGITS_OFFSET = 24;
+    static final int X_OFFSETS_OFFSET = DIGITS_OFFSET + MAX_DIGITS * 4;
+    static final int SIZE = X_OFFSETS_OFFSET + MAX_DIGITS * 4;
+
+    private final ByteBuffer mBuffer;
+
+    ScanResultBuffer() {
+        mBuffer = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * The buffer handed to native code.
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    int getFlags() {
+        return mBuffer.getInt(FLAGS_OFFSET);
+    }
+
+    int getEdgeMask() {
+        return getFlags() & EDGE_MASK;
+    }
+
+    boolean isCardDetected() {
+        return (getFlags() & FLAG_CARD_DETECTED) != 0;
+    }
+
+    boolean isComplete() {
+        return (getFlags() & FLAG_COMPLETE) != 0;
+    }
+
+    /**
+     * The frame failed the pre-filter, so it was not even focus scored. Its focus score is 0.
+     */
+    boolean isRejectedEarly() {
+        return (getFlags() & FLAG_REJECTED_EARLY) != 0;
+    }
+
+    /**
+     * The frame looked just like the last one that was recognized, so it was not scanned. Its
+     * focus score and edges are those of that frame.
+     */
+    boolean isUnchanged() {
+        return (getFlags() & FLAG_UNCHANGED) != 0;
+    }
+
+    float getFocusScore() {
+        return mBuffer.getFloat(FOCUS_SCORE_OFFSET);
+    }
+
+    /**
+     * Copy the result into <code>dInfo</code>, which is reset first. Does not allocate.
+     */
+    void decodeInto(DetectionInfo dInfo) {
+        dInfo.reset();
+
+        int flags = getFlags();
+        dInfo.setEdgeMask(flags);
+        dInfo.focusScore = getFocusScore();
+
+        if ((flags & FLAG_COMPLETE) == 0) {
+            return;
+        }
+
+        dInfo.complete = true;
+        dInfo.expiry_month = mBuffer.getInt(EXPIRY_MONTH_OFFSET);
+        dInfo.expiry_year = mBuffer.getInt(EXPIRY_YEAR_OFFSET);
+        dInfo.detectedCard.yoff = mBuffer.getInt(Y_OFFSET_OFFSET);
+
+        int numDigits = Math.min(mBuffer.getInt(NUM_DIGITS_OFFSET), MAX_DIGITS);
+        for (int i = 0; i < numDigits; i++) {
+            dInfo.prediction[i] = mBuffer.getInt(DIGITS_OFFSET + i * 4);
+            dInfo.detectedCard.xoff[i] = mBuffer.getInt(X_OFFSETS_OFFSET + i * 4);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.card.payment;
+
+/* StageHandoff.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * One-slot rendezvous between two stages of the scan pipeline, passing the index of the native
+ * pipeline slot a frame was left in (see {@link NativeRecognizer#nDetectFrame}).
+ * <p/>
+ * {@link #put(int)} only returns once the consumer has taken the slot, and the consumer only takes
+ * the next slot once it is done with the previous one. So when <code>put</code> returns, every
+ * slot but the one just handed over is free again, and two native slots are enough for the
+ * producer to work on one frame while the consumer works on the previous one.
+ * <p/>
+ * Does not allocate.
+ */
+class StageHandoff {
+    static final int CLOSED = -1;
+
+    private int mSlot = CLOSED;
+    private long mPuts;
+    private long mTakes;
+    private boolean mClosed;
+
+    /**
+     * Hand <code>slot</code> to the consumer and wait for it to be taken.
+     *
+     * @return <code>false</code> if the handoff was closed before the slot was taken.
+     */
+    synchronized boolean put(int slot) throws InterruptedException {
+        if (slot < 0) {
+            throw new IllegalArgumentException("slot must not be negative");
+        }
+        while (mSlot != CLOSED && !mClosed) {
+            wait();
+        }
+        if (mClosed) {
+            return false;
+        }
+        mSlot = slot;
+        long ticket = ++mPuts;
+        notifyAll();
+        while (mTakes < ticket && !mClosed) {
+            wait();
+        }
+        return mTakes >= ticket;
+    }
+
+    /**
+     * Wait for the next slot.
+     *
+     * @return the slot, or {@link #CLOSED} once the handoff has been closed.
+     */
+    synchronized int take() throws InterruptedException {
+        while (mSlot == CLOSED && !mClosed) {
+            wait();
+        }
+        if (mClosed) {
+            return CLOSED;
+        }
+        int slot = mSlot;
+        mSlot = CLOSED;
+        mTakes++;
+        notifyAll();
+        return slot;
+    }
+
+    /**
+     * Wake up both sides. Subsequent puts fail and {@link #take()} returns {@link #CLOSED}.
+     */
+    synchronized void close() {
+        mClosed = true;
+        mSlot = CLOSED;
+        notifyAll();
+    }
+}
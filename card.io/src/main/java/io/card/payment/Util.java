@@ -4,8 +4,10 @@ package io.card.payment;
  * See the file "LICENSE.md" for the full license governing this code.
  */
 
+import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -33,7 +35,18 @@ class Util {
 
     public static final String PUBLIC_LOG_TAG = "card.io";
 
+    // remembers hardwareSupportCheck() across processes, until the OS or card.io is updated
+    private static final String HARDWARE_PREFS = "io.card.payment.hardware";
+    private static final String PREF_PROBED_BUILD = "probedBuild";
+    private static final String PREF_SUPPORTED = "supported";
+
+    // guards sHardwareSupported and sAppContext, and is never held while probing the camera
+    private static final Object sHardwareLock = new Object();
+    // serializes probes, so only one of them opens the camera at a time
+    private static final Object sProbeLock = new Object();
     private static Boolean sHardwareSupported;
+    // from the last hardwareSupported(Context), for callers that have no context to pass
+    private static Context sAppContext;
 
     public static boolean deviceSupportsTorch(Context context) {
         return !TORCH_BLACK_LISTED
@@ -64,14 +77,109 @@ class Util {
 
     /* --- HARDWARE SUPPORT --- */
 
+    /**
+     * Like {@link #hardwareSupported(Context)} with the context it was last called with, if any.
+     * Otherwise the answer is neither read from nor kept across launches, and is assumed to be
+     * <code>true</code> for the rest of the process if the camera can't be opened for lack of
+     * permission.
+     */
     public static boolean hardwareSupported() {
-        if (sHardwareSupported == null) {
-            sHardwareSupported = hardwareSupportCheck();
+        Boolean cached = cachedHardwareSupported();
+        if (cached != null) {
+            return cached;
+        }
+        Context appContext;
+        synchronized (sHardwareLock) {
+            appContext = sAppContext;
+        }
+        if (appContext != null) {
+            return hardwareSupported(appContext);
+        }
+        synchronized (sProbeLock) {
+            // another probe may have answered while this one waited
+            cached = cachedHardwareSupported();
+            if (cached != null) {
+                return cached;
+            }
+            Boolean supported = hardwareSupportCheck();
+            return cacheHardwareSupported(supported == null || supported);
+        }
+    }
+
+    /**
+     * Whether the device can scan, probing the camera only if no earlier answer is known. A
+     * conclusive answer is kept in the app's preferences, so that later processes on the same build
+     * don't open the camera again. Without the camera permission, scanning is assumed to be
+     * supported and nothing is probed or kept, so the camera is checked once permission is granted.
+     */
+    static boolean hardwareSupported(Context context) {
+        Context appContext = context.getApplicationContext();
+        Boolean cached;
+        synchronized (sHardwareLock) {
+            sAppContext = appContext;
+            cached = sHardwareSupported;
+        }
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (sProbeLock) {
+            cached = cachedHardwareSupported();
+            if (cached != null) {
+                return cached;
+            }
+            SharedPreferences prefs = appContext
+                    .getSharedPreferences(HARDWARE_PREFS, Context.MODE_PRIVATE);
+            String build = probedBuild();
+            if (build.equals(prefs.getString(PREF_PROBED_BUILD, null))
+                    && prefs.contains(PREF_SUPPORTED)) {
+                return cacheHardwareSupported(prefs.getBoolean(PREF_SUPPORTED, false));
+            }
+
+            if (!mayUseCamera(appContext)) {
+                // check once the app may use the camera
+                return true;
+            }
+            Boolean supported = hardwareSupportCheck();
+            if (supported == null) {
+                // couldn't open it after all; check again next time
+                return true;
+            }
+            prefs.edit()
+                    .putString(PREF_PROBED_BUILD, build)
+                    .putBoolean(PREF_SUPPORTED, supported)
+                    .apply();
+            return cacheHardwareSupported(supported);
         }
-        return sHardwareSupported;
     }
 
-    private static boolean hardwareSupportCheck() {
+    private static Boolean cachedHardwareSupported() {
+        synchronized (sHardwareLock) {
+            return sHardwareSupported;
+        }
+    }
+
+    private static boolean cacheHardwareSupported(boolean supported) {
+        synchronized (sHardwareLock) {
+            sHardwareSupported = supported;
+        }
+        return supported;
+    }
+
+    private static boolean mayUseCamera(Context context) {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || context.checkCallingOrSelfPermission(Manifest.permission.CAMERA)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private static String probedBuild() {
+        return Build.FINGERPRINT + "/" + BuildConfig.VERSION_NAME;
+    }
+
+    /**
+     * @return <code>null</code> if the camera couldn't be checked because the app may not use it
+     * yet; scanning is then assumed to be supported.
+     */
+    private static Boolean hardwareSupportCheck() {
         if (!CardScanner.processorSupported()) {
             Log.w(PUBLIC_LOG_TAG, "- Processor type is not supported");
             return false;
@@ -83,7 +191,7 @@ class Util {
             c = Camera.open();
         } catch (RuntimeException e) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                return true;
+                return null;
             } else {
                 Log.w(PUBLIC_LOG_TAG, "- Error opening camera: " + e);
                 throw new CameraUnavailableException();
@@ -3,11 +3,18 @@
  * See the file "LICENSE.md" for the full license governing this code.
  */
 
+#include <math.h>
+#include <pthread.h>
+#include <stdint.h>
 #include <stdio.h>
+#include <stdlib.h>
 #include <string.h>
+#include <time.h>
 #include <jni.h>
+#ifdef __ANDROID__
 #include <android/log.h>
 #include <android/bitmap.h>
+#endif
 
 #include "opencv2/core/core_c.h"
 #include "opencv2/imgproc/imgproc_c.h"
@@ -21,14 +28,244 @@
 
 #define DEBUG_TAG "card.io native"
 
-static dmz_context* dmz = NULL;
-static int dmz_refcount = 0;
+/* Stages of a frame whose latency is recorded. The order MUST match ScanMetrics.Stage. */
+enum ScanStage {
+  kStagePrefilter,
+  kStageFingerprint,
+  kStageFocusScore,
+  kStageDeinterleave,
+  kStageTrackCorners,
+  kStageDetectEdges,
+  kStageTransformCard,
+  kStageRecognize,
+  kStageCardImage,
+  kStageFrame,
+  kStageCount
+};
+
+/* Latencies are counted in fixed buckets, four per power of two microseconds, which covers up to
+ * about 4 s with a resolution of 25% or better. The layout MUST match LatencyHistogram.java.
+ */
+#define kLatencyBuckets 88
+
+/* Images the frame pipeline reuses from one frame to the next. An image is only (re)allocated when
+ * it is missing or the wrong size, and every such allocation is counted (see
+ * nGetScratchAllocations). Whether the warp of the card reuses its image is up to the DMZ; see
+ * transformCardInto. Allocations inside the DMZ itself are not covered.
+ */
+struct ScratchArena {
+  // headers over memory the arena doesn't own; initialized in place, never allocated
+  IplImage frameHeader;       // luma plane of the current frame
+  IplImage cbcrHeader;        // interleaved chroma plane, or Cb plane, of the current frame
+  IplImage crHeader;          // Cr plane of the current frame, if not interleaved
+  IplImage cardResultHeader;  // locked pixels of the result bitmap
+
+  IplImage *cb;
+  IplImage *cr;
+  IplImage *cardY;
+  IplImage *bigCb;
+  IplImage *bigCr;
+
+  jlong allocations;
+};
+
+static IplImage *scratchImage(ScratchArena *arena, IplImage **slot, CvSize size, int channels) {
+  IplImage *image = *slot;
+  if (image != NULL && (image->width != size.width || image->height != size.height
+                        || image->nChannels != channels)) {
+    cvReleaseImage(slot);
+  }
+  if (*slot == NULL) {
+    *slot = cvCreateImage(size, IPL_DEPTH_8U, channels);
+    arena->allocations++;
+  }
+  return *slot;
+}
+
+static void destroyArena(ScratchArena *arena) {
+  cvReleaseImage(&arena->cb);
+  cvReleaseImage(&arena->cr);
+  cvReleaseImage(&arena->cardY);
+  cvReleaseImage(&arena->bigCb);
+  cvReleaseImage(&arena->bigCr);
+}
+
+/* The sharpest frame with a card seen so far, kept for rendering the card image once, when the scan
+ * completes (see nSetDeferCardImage). Its images are swapped with the arena's rather than copied,
+ * and stay allocated when it is cleared.
+ */
+struct BestFrame {
+  bool valid;
+  float focusScore;
+  IplImage *cardY;
+  IplImage *cb;
+  IplImage *cr;
+  dmz_corner_points corner_points;
+  int orientation;
+};
+
+static void clearBestFrame(BestFrame *best) {
+  best->valid = false;
+}
+
+static void destroyBestFrame(BestFrame *best) {
+  cvReleaseImage(&best->cardY);
+  cvReleaseImage(&best->cb);
+  cvReleaseImage(&best->cr);
+  best->valid = false;
+}
+
+/* The part of the frame that can hold a card: the guide frame, plus some slack for the card not
+ * being exactly lined up with it. Computed once per frame size. Only the pre-filter and the
+ * fingerprint are restricted to it; see "Guide window" in README.md for why focus, chroma and edge
+ * detection are not.
+ */
+struct GuideWindow {
+  int width;
+  int height;
+  CvRect luma;
+};
+
+/* Where the card was in the last frames, for predicting where it is in the next one. */
+struct CornerTrack {
+  bool active;
+  int orientation;
+  int framesTracked;  // since the last full edge detection
+  dmz_corner_points corners;
+  dmz_corner_points velocity;  // per frame
+  dmz_edges edges;  // as last found by the dmz
+};
+
+/* A coarse picture of the guide window: the mean luma of each cell of a kFingerprintGrid square grid.
+ * Two frames with close fingerprints show the same thing, as far as the recognizer is concerned.
+ */
+#define kFingerprintGrid 8
+#define kFingerprintSize (kFingerprintGrid * kFingerprintGrid)
+
+/* A frame that went through recognition, for skipping frames that look the same. */
+struct RecognizedFrame {
+  bool valid;
+  int frame;          // FrameDetection.frame it came from
+  uint8_t fingerprint[kFingerprintSize];
+  float focusScore;
+  int32_t flags;      // edge and card detected flags it was reported with
+};
+
+/* A frame with a card, waiting for its turn at recognition (see nSetRecognitionBudget). */
+#define kMaxCandidates 8
+
+struct Candidate {
+  IplImage *cardY;  // a copy; allocated once per slot
+  RecognizedFrame seen;
+  float focusScore;
+  float quality;
+  int frame;        // FrameDetection.frame it came from
+};
+
+/* All native state of one CardScanner. Each scanner owns its own context, addressed by the handle
+ * returned from nSetup, so independent scanners can run on different threads at the same time.
+ * A single context is used by one thread at a time, except that the detection stage (nDetectFrame)
+ * and the recognition stage (nRecognizeFrame) may run on one thread each; the fields each stage
+ * owns, and the few they share, are listed in README.md under "Threading".
+ */
+struct ScannerContext {
+  dmz_context *dmz;
+  ScannerState scannerState;
+  bool detectOnly;
+  bool flipped;
+  int unblurDigits;
+  float minFocusScore;
+  // pre-filter: sample every prefilterStep-th pixel of the guide window, 0 if off
+  int prefilterStep;
+  float prefilterMinScore;
+  // latency histograms for the lifetime of the context, [stage][bucket]; see recordStage
+  jint stageLatency[kStageCount][kLatencyBuckets];
+  // render the card image only once per scan, from bestFrame
+  bool deferCardImage;
+  BestFrame bestFrame;
+  ScratchArena arena;
+  GuideWindow guideWindow;
+  // follow the card from frame to frame instead of searching for its edges every time
+  bool trackCorners;
+  CornerTrack track;
+  // don't recognize frames that look just like the last recognized one
+  bool skipSimilar;
+  // written by recognition once it has actually run on a frame, read by detection
+  pthread_mutex_t recognizedLock;
+  RecognizedFrame lastRecognized;  // guarded by recognizedLock
+  // detection only: frames skipped in a row for looking like frame similarTo
+  int similarSkips;
+  int similarTo;
+  // recognize only the best candidateBudget of every candidateWindow frames with a card; 0 if off
+  int candidateWindow;
+  int candidateBudget;
+  int numCandidates;
+  Candidate candidates[kMaxCandidates];
+  int frameCount;
+  // scratch images of the recognition stage, which may run on another thread than detection
+  ScratchArena recognitionArena;
+  // frames handed from nDetectFrame to nRecognizeFrame; allocated on first use
+  struct PendingFrame *pending;
+};
+
+static void destroyPendingFrames(ScannerContext *context);
+
+/* Records that recognition ran on the frame seen describes, for detection to compare the next
+ * frames with. Called by the recognition stage.
+ */
+static void rememberRecognized(ScannerContext *context, const RecognizedFrame *seen) {
+  if (!seen->valid) {
+    return;
+  }
+  pthread_mutex_lock(&context->recognizedLock);
+  context->lastRecognized = *seen;
+  pthread_mutex_unlock(&context->recognizedLock);
+}
 
-static ScannerState scannerState;
-static bool detectOnly;
-static bool flipped;
-static int unblurDigits;
-static float minFocusScore;
+static void forgetRecognized(ScannerContext *context) {
+  pthread_mutex_lock(&context->recognizedLock);
+  context->lastRecognized.valid = false;
+  pthread_mutex_unlock(&context->recognizedLock);
+}
+
+/* flipped is set by recognition and read by detection, which may be on different threads. */
+static inline bool isFlipped(ScannerContext *context) {
+  return __atomic_load_n(&context->flipped, __ATOMIC_ACQUIRE);
+}
+
+static inline void setFlipped(ScannerContext *context, bool flipped) {
+  __atomic_store_n(&context->flipped, flipped, __ATOMIC_RELEASE);
+}
+
+static inline ScannerContext *contextFromHandle(jlong handle) {
+  return (ScannerContext *)(intptr_t)handle;
+}
+
+static inline int64_t nowMicros() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (int64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+/* Bucket b holds [2^(b/4) * (1 + (b%4)/4), ...) microseconds, i.e. the position of the highest set
+ * bit plus the two bits below it.
+ */
+static inline int latencyBucket(int64_t micros) {
+  if (micros < 1) {
+    return 0;
+  }
+  int msb = 63 - __builtin_clzll((unsigned long long)micros);
+  int bucket = 4 * msb + (int)(((micros << 2) >> msb) & 3);
+  return bucket < kLatencyBuckets ? bucket : kLatencyBuckets - 1;
+}
+
+/* Atomic, as the detection and recognition stages may record on different threads, and both record
+ * kStageFrame in the pipelined path.
+ */
+static inline void recordStage(ScannerContext *context, ScanStage stage, int64_t startMicros) {
+  __atomic_fetch_add(&context->stageLatency[stage][latencyBucket(nowMicros() - startMicros)], 1,
+                     __ATOMIC_RELAXED);
+}
 
 static struct {
   jclass classRef;
@@ -38,31 +275,36 @@ static struct {
   jfieldID right;
 } rectId;
 
-static struct {
-  jclass classRef;
-  jfieldID complete;
-  jfieldID topEdge;
-  jfieldID bottomEdge;
-  jfieldID leftEdge;
-  jfieldID rightEdge;
-  jfieldID focusScore;
-  jfieldID prediction;
-  jfieldID expiry_month;
-  jfieldID expiry_year;
-  jfieldID detectedCard;
-} detectionInfoId;
-
-static struct {
-  jclass classRef;
-  jfieldID flipped;
-  jfieldID yoff;
-  jfieldID xoff;
-} creditCardId;
-
-static struct {
-  jclass classRef;
-  jmethodID edgeUpdateCallback;
-} cardScannerId;
+/* The outcome of one frame, written to the direct buffer wrapped by ScanResultBuffer.java in a single
+ * copy. The layout MUST match the offsets in ScanResultBuffer.java.
+ */
+#define kScanResultMaxDigits 16
+
+enum {
+  kScanResultCardDetected = 1 << 4,
+  kScanResultComplete = 1 << 5,
+  kScanResultRejectedEarly = 1 << 6,
+  kScanResultUnchanged = 1 << 7,
+};
+
+// edge bits, as in DetectionInfo.java
+enum {
+  kScanResultEdgeTop = 1,
+  kScanResultEdgeBottom = 1 << 1,
+  kScanResultEdgeLeft = 1 << 2,
+  kScanResultEdgeRight = 1 << 3,
+};
+
+typedef struct {
+  int32_t flags;
+  float focus_score;
+  int32_t num_digits;
+  int32_t expiry_month;
+  int32_t expiry_year;
+  int32_t y_offset;
+  int32_t digits[kScanResultMaxDigits];
+  int32_t x_offsets[kScanResultMaxDigits];
+} ScanFrameResult;
 
 extern "C"
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -77,22 +319,16 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
    * see http://www.milk.com/kodebase/dalvik-docs-mirror/docs/jni-tips.html
    */
 
-  jclass myClass = env->FindClass("io/card/payment/CardScanner");
-  if (!myClass) {
-    dmz_error_log("Couldn't find CardScanner from JNI");
-    return -1;
-  }
-  cardScannerId.classRef = (jclass)env->NewGlobalRef(myClass);
-  cardScannerId.edgeUpdateCallback = env->GetMethodID(myClass, "onEdgeUpdate", "(Lio/card/payment/DetectionInfo;)V");
-  if (!cardScannerId.edgeUpdateCallback) {
-    dmz_error_log("Couldn't find edge update callback");
-    return -1;
-  }
-
   jclass rectClass = env->FindClass("android/graphics/Rect");
   if (!rectClass) {
     dmz_error_log("Couldn't find Rect class");
+#ifdef __ANDROID__
     return -1;
+#else
+    // host build (see host/Makefile) loaded by a plain JVM: everything but nGetGuideFrame works
+    env->ExceptionClear();
+    return JNI_VERSION_1_6;
+#endif
   }
   rectId.classRef = (jclass)env->NewGlobalRef(rectClass);
   rectId.top = env->GetFieldID(rectClass, "top", "I");
@@ -105,168 +341,212 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     return -1;
   }
 
-  jclass creditCardClass = (jclass)env->FindClass("io/card/payment/CreditCard");
-  if (creditCardClass == NULL) {
-    dmz_error_log("Couldn't find CreditCard class");
-    return -1;
-  }
-  creditCardId.classRef = (jclass)env->NewGlobalRef(creditCardClass);
-  creditCardId.flipped = env->GetFieldID(creditCardClass, "flipped", "Z");
-  creditCardId.yoff = env->GetFieldID(creditCardClass, "yoff", "I");
-  creditCardId.xoff = env->GetFieldID(creditCardClass, "xoff", "[I");
-  if (!( creditCardId.flipped && creditCardId.yoff && creditCardId.xoff )) {
-    dmz_error_log("at least one filed was not found for CreditCard");
-    return -1;
-  }
-
-  jclass dInfoClass = env->FindClass("io/card/payment/DetectionInfo");
-  if (dInfoClass == NULL) {
-    dmz_error_log("Couldn't find DetectionInfo class");
-    return -1;
-  }
-  detectionInfoId.classRef = (jclass)env->NewGlobalRef(dInfoClass);
-  detectionInfoId.complete = env->GetFieldID(dInfoClass, "complete", "Z");
-  detectionInfoId.topEdge = env->GetFieldID(dInfoClass, "topEdge", "Z");
-  detectionInfoId.bottomEdge = env->GetFieldID(dInfoClass, "bottomEdge", "Z");
-  detectionInfoId.leftEdge =  env->GetFieldID(dInfoClass, "leftEdge", "Z");
-  detectionInfoId.rightEdge = env->GetFieldID(dInfoClass, "rightEdge", "Z");
-  detectionInfoId.focusScore = env->GetFieldID(dInfoClass, "focusScore", "F");
-  detectionInfoId.prediction = env->GetFieldID(dInfoClass, "prediction", "[I");
-  detectionInfoId.expiry_month = env->GetFieldID(dInfoClass, "expiry_month", "I");
-  detectionInfoId.expiry_year = env->GetFieldID(dInfoClass, "expiry_year", "I");
-  detectionInfoId.detectedCard = env->GetFieldID(dInfoClass, "detectedCard", "Lio/card/payment/CreditCard;");
-
-  if (!(detectionInfoId.complete && detectionInfoId.topEdge && detectionInfoId.bottomEdge
-        && detectionInfoId.leftEdge && detectionInfoId.rightEdge
-        && detectionInfoId.focusScore && detectionInfoId.prediction
-        && detectionInfoId.expiry_month && detectionInfoId.expiry_year
-        && detectionInfoId.detectedCard
-       )) {
-    dmz_error_log("at least one field was not found for DetectionInfo");
-    return -1;
-  }
-
   return JNI_VERSION_1_6;
 }
 
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nSetup__ZFI(JNIEnv *env,
-        jobject thiz, jboolean shouldOnlyDetectCard, jfloat jMinFocusScore, jint jUnblurDigits) {
-  dmz_debug_log("Java_io_card_payment_CardScanner_nSetup");
+JNIEXPORT jlong JNICALL Java_io_card_payment_NativeRecognizer_nSetup(JNIEnv *env,
+        jclass clazz, jboolean shouldOnlyDetectCard, jfloat jMinFocusScore, jint jUnblurDigits) {
+  dmz_debug_log("Java_io_card_payment_NativeRecognizer_nSetup");
   dmz_trace_log("dmz trace enabled");
 
+  ScannerContext *context = new ScannerContext();
+  context->detectOnly = shouldOnlyDetectCard;
+  context->minFocusScore = jMinFocusScore;
+  context->unblurDigits = jUnblurDigits;
+  setFlipped(context, false);
+  context->prefilterStep = 0;
+  context->prefilterMinScore = 0;
+  memset(context->stageLatency, 0, sizeof(context->stageLatency));
+  context->deferCardImage = false;
+  memset(&context->bestFrame, 0, sizeof(BestFrame));
+  memset(&context->arena, 0, sizeof(ScratchArena));
+  memset(&context->guideWindow, 0, sizeof(GuideWindow));
+  context->trackCorners = false;
+  memset(&context->track, 0, sizeof(CornerTrack));
+  context->skipSimilar = false;
+  pthread_mutex_init(&context->recognizedLock, NULL);
+  memset(&context->lastRecognized, 0, sizeof(RecognizedFrame));
+  context->similarSkips = 0;
+  context->similarTo = 0;
+  context->candidateWindow = 0;
+  context->candidateBudget = 0;
+  context->numCandidates = 0;
+  memset(context->candidates, 0, sizeof(context->candidates));
+  context->frameCount = 0;
+  memset(&context->recognitionArena, 0, sizeof(ScratchArena));
+  context->pending = NULL;
+
+  context->dmz = dmz_context_create();
+  scanner_initialize(&context->scannerState);
+
+  cvSetErrMode(CV_ErrModeParent);
 
-  detectOnly = shouldOnlyDetectCard;
-  minFocusScore = jMinFocusScore;
-  unblurDigits = jUnblurDigits;
-  flipped = false;
+  return (jlong)(intptr_t)context;
+}
 
-  if (dmz == NULL) {
-    dmz = dmz_context_create();
-    scanner_initialize(&scannerState);
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nResetAnalytics(JNIEnv *env, jclass clazz,
+        jlong handle) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context != NULL) {
+    scanner_reset(&context->scannerState);
+    setFlipped(context, false);
+    clearBestFrame(&context->bestFrame);
+    context->track.active = false;
+    forgetRecognized(context);
+    context->numCandidates = 0;
   }
-  else {
-    scanner_reset(&scannerState);
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nSetDeferCardImage(JNIEnv *env, jclass clazz,
+        jlong handle, jboolean defer) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context != NULL) {
+    context->deferCardImage = defer;
+    if (!defer) {
+      destroyBestFrame(&context->bestFrame);
+    }
   }
-  dmz_refcount++;
+}
 
-  cvSetErrMode(CV_ErrModeParent);
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nSetPrefilter(JNIEnv *env, jclass clazz,
+        jlong handle, jint decimation, jfloat minScore) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context != NULL) {
+    bool enabled = decimation > 0 && minScore > 0;
+    context->prefilterStep = enabled ? decimation : 0;
+    context->prefilterMinScore = enabled ? minScore : 0;
+  }
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nSetCornerTracking(JNIEnv *env, jclass clazz,
+        jlong handle, jboolean enabled) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context != NULL) {
+    context->trackCorners = enabled;
+    context->track.active = false;
+  }
 }
 
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nSetup__ZF(JNIEnv *env,
-        jobject thiz, jboolean shouldOnlyDetectCard, jfloat jMinFocusScore) {
-    return Java_io_card_payment_CardScanner_nSetup__ZFI(env, thiz, shouldOnlyDetectCard, jMinFocusScore, unblurDigits);
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nSetSkipSimilarFrames(JNIEnv *env, jclass clazz,
+        jlong handle, jboolean enabled) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context != NULL) {
+    context->skipSimilar = enabled;
+    forgetRecognized(context);
+  }
 }
 
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nResetAnalytics(JNIEnv *env, jobject thiz) {
-  scanner_reset(&scannerState);
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nSetRecognitionBudget(JNIEnv *env, jclass clazz,
+        jlong handle, jint window, jint budget) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context != NULL) {
+    bool enabled = window > 1 && budget > 0 && budget < window;
+    context->candidateWindow = enabled ? MIN(window, kMaxCandidates) : 0;
+    context->candidateBudget = enabled ? budget : 0;
+    context->numCandidates = 0;
+  }
 }
 
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nCleanup(JNIEnv *env, jobject thiz) {
-  dmz_debug_log("Java_io_card_payment_CardScanner_nCleanup");
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nCleanup(JNIEnv *env, jclass clazz,
+        jlong handle) {
+  dmz_debug_log("Java_io_card_payment_NativeRecognizer_nCleanup");
 
-  if (dmz_refcount == 1) {
-    scanner_destroy(&scannerState);
-    dmz_context_destroy(dmz);
-    dmz = NULL;
+  ScannerContext *context = contextFromHandle(handle);
+  if (context == NULL) {
+    return;
+  }
+  destroyBestFrame(&context->bestFrame);
+  destroyArena(&context->arena);
+  destroyArena(&context->recognitionArena);
+  destroyPendingFrames(context);
+  for (int i = 0; i < kMaxCandidates; i++) {
+    cvReleaseImage(&context->candidates[i].cardY);
   }
-  dmz_refcount--;
+  scanner_destroy(&context->scannerState);
+  dmz_context_destroy(context->dmz);
+  pthread_mutex_destroy(&context->recognizedLock);
+  delete context;
 }
 
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nGetGuideFrame(JNIEnv *env, jobject thiz,
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nGetGuideFrame(JNIEnv *env, jclass clazz,
     jint orientation, jint width, jint height, jobject rect)
 {
-  dmz_trace_log("Java_io_card_payment_CardScanner_nGetGuideFrame");
+  dmz_trace_log("Java_io_card_payment_NativeRecognizer_nGetGuideFrame");
 
   dmz_rect dr = dmz_guide_frame(orientation, width, height);
 
+  if (rectId.classRef == NULL) {
+    return;
+  }
   env->SetIntField(rect, rectId.top, dr.y);
   env->SetIntField(rect, rectId.left, dr.x);
   env->SetIntField(rect, rectId.bottom, dr.y + dr.h);
   env->SetIntField(rect, rectId.right, dr.x + dr.w);
 }
 
-void updateEdgeDetectDisplay(JNIEnv* env, jobject thiz, jobject dinfo, dmz_edges found_edges) {
-  env->SetBooleanField(dinfo, detectionInfoId.topEdge, found_edges.top.found);
-  env->SetBooleanField(dinfo, detectionInfoId.bottomEdge, found_edges.bottom.found);
-  env->SetBooleanField(dinfo, detectionInfoId.leftEdge, found_edges.left.found);
-  env->SetBooleanField(dinfo, detectionInfoId.rightEdge, found_edges.right.found);
-
-  env->CallVoidMethod(thiz, cardScannerId.edgeUpdateCallback, dinfo);
+int edgeFlags(dmz_edges found_edges) {
+  return (found_edges.top.found ? kScanResultEdgeTop : 0)
+       | (found_edges.bottom.found ? kScanResultEdgeBottom : 0)
+       | (found_edges.left.found ? kScanResultEdgeLeft : 0)
+       | (found_edges.right.found ? kScanResultEdgeRight : 0);
 }
 
-void setScanCardNumberResult(JNIEnv* env, jobject dinfo, ScannerResult* scanResult) {
-
-  jint numbers[16];
-  jint offsets[16];
-  for (int i = 0; i < scanResult->n_numbers; i++) {
-    numbers[i] = scanResult->predictions(i);
-    dmz_debug_log("prediction[%i]= %i", i, scanResult->predictions(i));
-    offsets[i] = scanResult->hseg.offsets[i];
-    dmz_debug_log("offsets[%i]= %i", i, scanResult->hseg.offsets[i]);
+void setScanCardNumberResult(ScanFrameResult *frameResult, ScannerResult *scanResult) {
+  int n = scanResult->n_numbers;
+  if (n > kScanResultMaxDigits) {
+    n = kScanResultMaxDigits;
   }
-
-  jobject digitArray = env->GetObjectField(dinfo, detectionInfoId.prediction);
-  dmz_debug_log("setting prediction array region");
-  env->SetIntArrayRegion((jintArray)digitArray, 0, scanResult->n_numbers, numbers);
-
-  jobject cardObj = env->GetObjectField(dinfo, detectionInfoId.detectedCard);
-  dmz_debug_log("got cardObj: %x", cardObj);
-  env->SetIntField(cardObj, creditCardId.yoff, scanResult->vseg.y_offset);
-
-  jobject xoffArray = env->GetObjectField(cardObj, creditCardId.xoff);
-  dmz_debug_log("setting xoffset array region: %x", xoffArray);
-  env->SetIntArrayRegion((jintArray)xoffArray, 0, scanResult->n_numbers, offsets);
+  frameResult->num_digits = n;
+  for (int i = 0; i < n; i++) {
+    frameResult->digits[i] = scanResult->predictions(i);
+    frameResult->x_offsets[i] = scanResult->hseg.offsets[i];
+    dmz_debug_log("prediction[%i]= %i offset=%i", i, frameResult->digits[i], frameResult->x_offsets[i]);
+  }
+  frameResult->y_offset = scanResult->vseg.y_offset;
 
   dmz_debug_log("setting expiry to %i/%i", scanResult->expiry_month, scanResult->expiry_year);
-  env->SetIntField(dinfo, detectionInfoId.expiry_month, scanResult->expiry_month);
-  env->SetIntField(dinfo, detectionInfoId.expiry_year, scanResult->expiry_year);
-
-  dmz_debug_log("setting detectionInfoId.complete=true");
-  env->SetBooleanField(dinfo, detectionInfoId.complete, true);
+  frameResult->expiry_month = scanResult->expiry_month;
+  frameResult->expiry_year = scanResult->expiry_year;
 
-  dmz_debug_log("done in setScanCardNumberResult()");
+  frameResult->flags |= kScanResultComplete;
 }
 
-void logDinfo(JNIEnv* env, jobject dinfo) {
-  dmz_debug_log("dinfo: complete=%i", env->GetBooleanField(dinfo, detectionInfoId.complete));
-
-  jintArray digitArray = (jintArray) env->GetObjectField(dinfo, detectionInfoId.prediction);
-  dmz_debug_log("dinfo: prediction[0-3]=%i%i%i%i...",
-                env->GetIntArrayElements(digitArray, NULL)[0],
-                env->GetIntArrayElements(digitArray, NULL)[1],
-                env->GetIntArrayElements(digitArray, NULL)[2],
-                env->GetIntArrayElements(digitArray, NULL)[3]);
+/* Warps sample into *slot. dmz_transform_card is handed the image already there, but may replace
+ * it: that is up to the DMZ, which this layer does not control. A replacement is kept and counted,
+ * so nGetScratchAllocations shows whether the warp reuses the image.
+ */
+static void transformCardInto(ScratchArena *arena, IplImage **slot, IplImage *sample,
+    dmz_corner_points corner_points, int orientation, bool upsample) {
+  IplImage *reused = scratchImage(arena, slot, cvSize(kCreditCardTargetWidth, kCreditCardTargetHeight),
+                                  sample->nChannels);
+  dmz_transform_card(NULL, sample, corner_points, orientation, upsample, slot);
+  if (*slot != reused) {
+    // the dmz made a new image instead of filling in ours; keep the new one, so this is counted
+    // (once) rather than leaked
+    cvReleaseImage(&reused);
+    arena->allocations++;
+  }
 }
 
-void setDetectedCardImage(JNIEnv* env, jobject jCardResultBitmap,
+void setDetectedCardImage(JNIEnv* env, ScannerContext *context, jobject jCardResultBitmap,
         IplImage* cardY, IplImage* cb, IplImage* cr,
         dmz_corner_points corner_points, int orientation) {
 
+  if (jCardResultBitmap == NULL) {
+    // headless scans (CardImageScanner) don't ask for the card image
+    return;
+  }
+
+#ifdef __ANDROID__
   char* pixels = NULL;
 
   AndroidBitmapInfo  bmInfo;
@@ -286,110 +566,1141 @@ void setDetectedCardImage(JNIEnv* env, jobject jCardResultBitmap,
     dmz_error_log("couldn't lock bitmap:%i", bmRes);
   }
   else {
-    IplImage* bigCb = NULL;
-    dmz_transform_card(NULL, cb, corner_points, orientation, true, &bigCb);
-
-    IplImage* bigCr = NULL;
-    dmz_transform_card(NULL, cr, corner_points, orientation, true, &bigCr);
+    ScratchArena *arena = &context->recognitionArena;
+    transformCardInto(arena, &arena->bigCb, cb, corner_points, orientation, true);
+    transformCardInto(arena, &arena->bigCr, cr, corner_points, orientation, true);
 
-    IplImage* cardResult = cvCreateImageHeader(cvSize(bmInfo.width, bmInfo.height), IPL_DEPTH_8U, 4);
+    IplImage* cardResult = &arena->cardResultHeader;
+    cvInitImageHeader(cardResult, cvSize(bmInfo.width, bmInfo.height), IPL_DEPTH_8U, 4);
     cvSetData(cardResult, pixels, bmInfo.stride);
-    dmz_YCbCr_to_RGB(cardY, bigCb, bigCr, &cardResult);
+    dmz_YCbCr_to_RGB(cardY, arena->bigCb, arena->bigCr, &cardResult);
 
-    dmz_blur_card(cardResult, &scannerState, unblurDigits);
+    dmz_blur_card(cardResult, &context->scannerState, context->unblurDigits);
 
     AndroidBitmap_unlockPixels(env, jCardResultBitmap);
+  }
+#else
+  dmz_debug_log("the host build does not render the card image");
+#endif
+}
+
+/* Where the planes of a YUV 4:2:0 frame are. NV21 frames from the Camera API are one block: luma,
+ * then interleaved CrCb. YUV_420_888 frames from Camera2 come as three planes, each with its own row
+ * stride, and the two chroma planes may be interleaved either way round (in which case they overlap)
+ * or separate.
+ */
+struct FramePlanes {
+  char *y;
+  int yRowStride;
+  char *cb;
+  char *cr;
+  int chromaRowStride;
+  int chromaPixelStride;  // distance between neighbouring samples of one chroma plane
+};
+
+static FramePlanes nv21Planes(char *frameData, int width, int height) {
+  FramePlanes planes;
+  planes.y = frameData;
+  planes.yRowStride = width;
+  planes.cr = frameData + width * height;
+  planes.cb = planes.cr + 1;
+  planes.chromaRowStride = width;
+  planes.chromaPixelStride = 2;
+  return planes;
+}
+
+/* The chroma planes of a frame, extracted from the frame on first use. Stages that only look at
+ * luma (focus, recognition) never pay for them, and frames that fail a luma stage never extract
+ * them at all. cb and cr are scratch images; this doesn't own them.
+ */
+struct FrameChroma {
+  FramePlanes planes;  // of the frame; only valid while the frame is
+  int width;
+  int height;
+  IplImage *cb;
+  IplImage *cr;
+};
+
+// The frames are always landscape, and the dmz looks for the card in their landscape guide frame,
+// whatever the orientation of the UI. 4 is FrameOrientationLandscapeLeft.
+static const int kGuideWindowOrientation = 4;
+// slack around the guide frame, as a fraction of its size, on each side
+static const float kGuideWindowPadding = 0.08f;
+
+static const GuideWindow *guideWindow(ScannerContext *context, int width, int height) {
+  GuideWindow *window = &context->guideWindow;
+  if (window->width == width && window->height == height) {
+    return window;
+  }
+  window->width = width;
+  window->height = height;
+
+  dmz_rect guide = dmz_guide_frame(kGuideWindowOrientation, width, height);
+  int padX = (int)(guide.w * kGuideWindowPadding);
+  int padY = (int)(guide.h * kGuideWindowPadding);
+  int left = MAX(0, ((int)guide.x - padX) & ~1);
+  int top = MAX(0, ((int)guide.y - padY) & ~1);
+  int right = MIN(width, ((int)(guide.x + guide.w) + padX + 1) & ~1);
+  int bottom = MIN(height, ((int)(guide.y + guide.h) + padY + 1) & ~1);
+  if (width < height || right <= left || bottom <= top) {
+    // not a frame the dmz knows how to read; don't restrict anything
+    left = top = 0;
+    right = width & ~1;
+    bottom = height & ~1;
+  }
+  window->luma = cvRect(left, top, right - left, bottom - top);
+  dmz_debug_log("guide window for %ix%i: %i,%i %ix%i", width, height,
+                left, top, right - left, bottom - top);
+  return window;
+}
+
+static void initChroma(FrameChroma *chroma, const FramePlanes *planes, int width, int height) {
+  chroma->planes = *planes;
+  chroma->width = width;
+  chroma->height = height;
+  chroma->cb = NULL;
+  chroma->cr = NULL;
+}
+
+static bool hasChroma(FrameChroma *chroma) {
+  return chroma->cb != NULL;
+}
+
+/* Copies a chroma plane whose samples are pixelStride apart, for layouts OpenCV has no view of. */
+static void copyStridedPlane(const char *plane, int rowStride, int pixelStride, IplImage *dst) {
+  for (int y = 0; y < dst->height; y++) {
+    const char *src = plane + y * rowStride;
+    char *row = dst->imageData + y * dst->widthStep;
+    for (int x = 0; x < dst->width; x++) {
+      row[x] = src[x * pixelStride];
+    }
+  }
+}
+
+/* Must be called while the frame is still accessible. The whole planes are extracted: the edge
+ * search and the card image warp may reach past the guide window, and must not find the chroma of
+ * an earlier frame there.
+ */
+static void ensureChroma(ScannerContext *context, FrameChroma *chroma) {
+  if (hasChroma(chroma)) {
+    return;
+  }
+  int64_t start = nowMicros();
+  ScratchArena *arena = &context->arena;
+  const FramePlanes *planes = &chroma->planes;
+  CvSize size = cvSize(chroma->width / 2, chroma->height / 2);
+
+  chroma->cr = scratchImage(arena, &arena->cr, size, 1);
+  chroma->cb = scratchImage(arena, &arena->cb, size, 1);
+
+  IplImage *cbcr = &arena->cbcrHeader;
+  if (planes->chromaPixelStride == 2 && abs(planes->cb - planes->cr) == 1) {
+    // interleaved: CrCb for NV21 (the Camera API default, and what most Camera2 devices produce
+    // too), CbCr otherwise
+    bool crFirst = planes->cr < planes->cb;
+    cvInitImageHeader(cbcr, size, IPL_DEPTH_8U, 2);
+    cvSetData(cbcr, crFirst ? planes->cr : planes->cb, planes->chromaRowStride);
+    // same as dmz_deinterleave_uint8_c2, but into the existing images
+    if (crFirst) {
+      cvSplit(cbcr, chroma->cr, chroma->cb, NULL, NULL);
+    } else {
+      cvSplit(cbcr, chroma->cb, chroma->cr, NULL, NULL);
+    }
+    cvSetData(cbcr, NULL, planes->chromaRowStride);
+  } else if (planes->chromaPixelStride == 1) {
+    // separate planes (I420 and friends)
+    IplImage *crPlane = &arena->crHeader;
+    cvInitImageHeader(cbcr, size, IPL_DEPTH_8U, 1);
+    cvSetData(cbcr, planes->cb, planes->chromaRowStride);
+    cvInitImageHeader(crPlane, size, IPL_DEPTH_8U, 1);
+    cvSetData(crPlane, planes->cr, planes->chromaRowStride);
+    cvCopy(cbcr, chroma->cb);
+    cvCopy(crPlane, chroma->cr);
+    cvSetData(cbcr, NULL, planes->chromaRowStride);
+    cvSetData(crPlane, NULL, planes->chromaRowStride);
+  } else {
+    copyStridedPlane(planes->cb, planes->chromaRowStride, planes->chromaPixelStride, chroma->cb);
+    copyStridedPlane(planes->cr, planes->chromaRowStride, planes->chromaPixelStride, chroma->cr);
+  }
+
+  recordStage(context, kStageDeinterleave, start);
+}
+
+static void forgetFrame(FrameChroma *chroma) {
+  chroma->planes.y = NULL;
+  chroma->planes.cb = NULL;
+  chroma->planes.cr = NULL;
+}
+
+static void dropChroma(FrameChroma *chroma) {
+  chroma->cb = NULL;
+  chroma->cr = NULL;
+  forgetFrame(chroma);
+}
+
+/* Everything the scan pipeline learns from the camera frame itself. Once this has been filled in,
+ * the frame data is no longer needed, which lets the caller release it before any other JNI call.
+ */
+struct FrameDetection {
+  int frame;           // index of the frame in the lifetime of the context
+  bool rejectedEarly;  // by the pre-filter; nothing else was looked at
+  bool similar;        // looks like context->lastRecognized; nothing else was looked at
+  int32_t similarFlags;  // if similar, the flags the recognized frame was reported with
+  bool hasFingerprint;
+  uint8_t fingerprint[kFingerprintSize];
+  float focusScore;
+  dmz_edges found_edges;
+  dmz_corner_points corner_points;
+  bool cardDetected;
+  FrameChroma chroma;  // only extracted if a later stage needs it
+  IplImage *cardY;     // scratch image, not owned
+};
+
+/* Cheap stand-in for the focus score: the mean absolute difference between neighbouring pixels of
+ * the window, sampled every step pixels in both directions, i.e. on a decimated view of the frame
+ * without making one. Near zero for frames that are blurred out or show no card-like contrast at all
+ * (a covered lens, a blank wall).
+ */
+static float prefilterScore(IplImage *image, CvRect window, int step) {
+  const uint8_t *data = (const uint8_t *)image->imageData;
+  int stride = image->widthStep;
+  int right = window.x + window.width - step;
+  int bottom = window.y + window.height - step;
+  int64_t sum = 0;
+  int samples = 0;
+  for (int y = window.y; y < bottom; y += step) {
+    const uint8_t *row = data + y * stride;
+    const uint8_t *below = row + step * stride;
+    for (int x = window.x; x < right; x += step) {
+      int p = row[x];
+      sum += abs(row[x + step] - p) + abs(below[x] - p);
+      samples++;
+    }
+  }
+  return samples == 0 ? 0 : (float)sum / samples;
+}
+
+/* Fills in the fingerprint of the window, from every 4th pixel of every 4th row. */
+static void fingerprintWindow(IplImage *image, CvRect window, uint8_t *fingerprint) {
+  const uint8_t *data = (const uint8_t *)image->imageData;
+  int stride = image->widthStep;
+  for (int cy = 0; cy < kFingerprintGrid; cy++) {
+    int top = window.y + window.height * cy / kFingerprintGrid;
+    int bottom = window.y + window.height * (cy + 1) / kFingerprintGrid;
+    for (int cx = 0; cx < kFingerprintGrid; cx++) {
+      int left = window.x + window.width * cx / kFingerprintGrid;
+      int right = window.x + window.width * (cx + 1) / kFingerprintGrid;
+      int sum = 0;
+      int samples = 0;
+      for (int y = top; y < bottom; y += 4) {
+        const uint8_t *row = data + y * stride;
+        for (int x = left; x < right; x += 4) {
+          sum += row[x];
+          samples++;
+        }
+      }
+      fingerprint[cy * kFingerprintGrid + cx] = samples == 0 ? 0 : (uint8_t)(sum / samples);
+    }
+  }
+}
+
+// mean difference per cell, in luma levels, below which two fingerprints are the same picture.
+// Sensor noise averages out over a cell; any real movement or exposure change doesn't.
+#define kFingerprintMaxDifference 2
+// Identical frames still help a little, as noise differs between them, so let one through every
+// so often rather than stall a scan of a card lying still.
+#define kMaxSimilarSkips 2
+
+static bool similarFingerprints(const uint8_t *a, const uint8_t *b) {
+  int difference = 0;
+  for (int i = 0; i < kFingerprintSize; i++) {
+    difference += abs(a[i] - b[i]);
+  }
+  return difference < kFingerprintMaxDifference * kFingerprintSize;
+}
+
+/* Corner tracking. Once the dmz has found the card, the next frame's corners are predicted from
+ * the last ones, moving at the speed they last moved, and each side of the predicted card is
+ * checked with a search for the strongest edge a few pixels either side of it. If all four sides
+ * are found, they give the corners of the frame; otherwise the frame goes through full edge
+ * detection, which also happens every kTrackMaxFrames frames so that the dmz gets the last word.
+ */
+#define kTrackMaxFrames 15
+#define kTrackSamplesPerSide 24
+#define kTrackSearchRadius 6      // pixels either side of the predicted side
+#define kTrackGradientGap 2       // pixels either side of the side the contrast is taken across
+#define kTrackMinContrast 12      // luma levels, for a sample to count as on the edge
+#define kTrackMinEdgeFraction 0.6f
+
+static inline int lumaAt(IplImage *image, float x, float y) {
+  int ix = (int)(x + 0.5f);
+  int iy = (int)(y + 0.5f);
+  if (ix < 0 || iy < 0 || ix >= image->width || iy >= image->height) {
+    return -1;
+  }
+  return ((uint8_t *)image->imageData)[iy * image->widthStep + ix];
+}
+
+/* Looks for the edge running from a to b, up to kTrackSearchRadius pixels either side of it. On
+ * success, returns true and the distance to move the side along its normal (nx, ny).
+ */
+static bool verifySide(IplImage *image, dmz_point a, dmz_point b, float *nx, float *ny, float *shift) {
+  float dx = b.x - a.x;
+  float dy = b.y - a.y;
+  float length = sqrtf(dx * dx + dy * dy);
+  if (length < 1) {
+    return false;
+  }
+  *nx = -dy / length;
+  *ny = dx / length;
+
+  int bestStrong = -1;
+  int bestOffset = 0;
+  for (int offset = -kTrackSearchRadius; offset <= kTrackSearchRadius; offset++) {
+    int strong = 0;
+    for (int i = 0; i < kTrackSamplesPerSide; i++) {
+      // stay clear of the corners, where the other sides are
+      float t = 0.1f + 0.8f * (i + 0.5f) / kTrackSamplesPerSide;
+      float x = a.x + t * dx + offset * *nx;
+      float y = a.y + t * dy + offset * *ny;
+      int inside = lumaAt(image, x - kTrackGradientGap * *nx, y - kTrackGradientGap * *ny);
+      int outside = lumaAt(image, x + kTrackGradientGap * *nx, y + kTrackGradientGap * *ny);
+      if (inside >= 0 && outside >= 0 && abs(outside - inside) >= kTrackMinContrast) {
+        strong++;
+      }
+    }
+    // ties go to the smallest move
+    if (strong > bestStrong || (strong == bestStrong && abs(offset) < abs(bestOffset))) {
+      bestStrong = strong;
+      bestOffset = offset;
+    }
+  }
+  *shift = bestOffset;
+  return bestStrong >= kTrackMinEdgeFraction * kTrackSamplesPerSide;
+}
+
+/* Corner where the line through a (direction da) meets the line through b (direction db). */
+static bool intersect(dmz_point a, dmz_point da, dmz_point b, dmz_point db, dmz_point *corner) {
+  float det = da.x * db.y - da.y * db.x;
+  if (fabsf(det) < 1e-3f) {
+    return false;
+  }
+  float t = ((b.x - a.x) * db.y - (b.y - a.y) * db.x) / det;
+  corner->x = a.x + t * da.x;
+  corner->y = a.y + t * da.y;
+  return true;
+}
+
+struct TrackedSide {
+  dmz_point origin;
+  dmz_point direction;
+};
+
+static bool trackSide(IplImage *image, dmz_point a, dmz_point b, TrackedSide *side) {
+  float nx, ny, shift;
+  if (!verifySide(image, a, b, &nx, &ny, &shift)) {
+    return false;
+  }
+  side->origin.x = a.x + shift * nx;
+  side->origin.y = a.y + shift * ny;
+  side->direction.x = b.x - a.x;
+  side->direction.y = b.y - a.y;
+  return true;
+}
+
+static dmz_point predictCorner(dmz_point corner, dmz_point velocity) {
+  dmz_point predicted = {corner.x + velocity.x, corner.y + velocity.y};
+  return predicted;
+}
+
+static bool trackCorners(ScannerContext *context, IplImage *image, int orientation,
+    dmz_corner_points *corners) {
+  CornerTrack *track = &context->track;
+  if (!track->active || track->orientation != orientation || track->framesTracked >= kTrackMaxFrames) {
+    return false;
+  }
+  dmz_corner_points p;
+  p.top_left = predictCorner(track->corners.top_left, track->velocity.top_left);
+  p.top_right = predictCorner(track->corners.top_right, track->velocity.top_right);
+  p.bottom_left = predictCorner(track->corners.bottom_left, track->velocity.bottom_left);
+  p.bottom_right = predictCorner(track->corners.bottom_right, track->velocity.bottom_right);
+
+  TrackedSide top, bottom, left, right;
+  if (!trackSide(image, p.top_left, p.top_right, &top)
+      || !trackSide(image, p.bottom_left, p.bottom_right, &bottom)
+      || !trackSide(image, p.top_left, p.bottom_left, &left)
+      || !trackSide(image, p.top_right, p.bottom_right, &right)) {
+    return false;
+  }
+  return intersect(top.origin, top.direction, left.origin, left.direction, &corners->top_left)
+      && intersect(top.origin, top.direction, right.origin, right.direction, &corners->top_right)
+      && intersect(bottom.origin, bottom.direction, left.origin, left.direction, &corners->bottom_left)
+      && intersect(bottom.origin, bottom.direction, right.origin, right.direction, &corners->bottom_right);
+}
+
+static void moveCorner(dmz_point *corner, dmz_point *velocity, dmz_point next) {
+  velocity->x = next.x - corner->x;
+  velocity->y = next.y - corner->y;
+  *corner = next;
+}
+
+/* Records where the card was found in this frame. */
+static void updateTrack(ScannerContext *context, int orientation, dmz_corner_points corners,
+    bool tracked) {
+  CornerTrack *track = &context->track;
+  if (track->active && track->orientation == orientation) {
+    moveCorner(&track->corners.top_left, &track->velocity.top_left, corners.top_left);
+    moveCorner(&track->corners.top_right, &track->velocity.top_right, corners.top_right);
+    moveCorner(&track->corners.bottom_left, &track->velocity.bottom_left, corners.bottom_left);
+    moveCorner(&track->corners.bottom_right, &track->velocity.bottom_right, corners.bottom_right);
+  }
+  else {
+    memset(&track->velocity, 0, sizeof(dmz_corner_points));
+    track->corners = corners;
+  }
+  track->active = true;
+  track->orientation = orientation;
+  track->framesTracked = tracked ? track->framesTracked + 1 : 0;
+}
+
+/* Reads the frame in planes, luma stages first. Must not make any JNI calls: when called from
+ * nScanFrame, the frame is held in a JNI critical region.
+ *
+ * needCardImage says whether finishScan will render the card image, the only stage after this one
+ * that looks at chroma.
+ */
+void detectCard(ScannerContext *context, const FramePlanes *planes, int width, int height,
+    int orientation, bool needCardImage, FrameDetection *detection) {
+  detection->frame = ++context->frameCount;
+  detection->rejectedEarly = false;
+  detection->similar = false;
+  detection->hasFingerprint = false;
+  detection->cardDetected = false;
+  detection->cardY = NULL;
+  initChroma(&detection->chroma, planes, width, height);
+
+  // every stage reads rows through widthStep, so padded rows are read in place
+  IplImage *image = &context->arena.frameHeader;
+  cvInitImageHeader(image, cvSize(width, height), IPL_DEPTH_8U, 1);
+  cvSetData(image, planes->y, planes->yRowStride);
+  CvRect window = guideWindow(context, width, height)->luma;
+
+  int64_t start;
+  if (context->prefilterStep > 0) {
+    start = nowMicros();
+    float score = prefilterScore(image, window, context->prefilterStep);
+    recordStage(context, kStagePrefilter, start);
+    dmz_trace_log("pre-filter score: %f", score);
+    if (score < context->prefilterMinScore) {
+      detection->rejectedEarly = true;
+      detection->focusScore = 0;
+      dropChroma(&detection->chroma);
+      cvSetData(image, NULL, planes->yRowStride);
+      return;
+    }
+  }
+
+  if (context->skipSimilar && !context->detectOnly) {
+    start = nowMicros();
+    fingerprintWindow(image, window, detection->fingerprint);
+    detection->hasFingerprint = true;
+    RecognizedFrame last;
+    pthread_mutex_lock(&context->recognizedLock);
+    last = context->lastRecognized;
+    pthread_mutex_unlock(&context->recognizedLock);
+    if (last.valid && last.frame != context->similarTo) {
+      // a newer frame was recognized since; count skips against that one
+      context->similarTo = last.frame;
+      context->similarSkips = 0;
+    }
+    detection->similar = last.valid && context->similarSkips < kMaxSimilarSkips
+                         && similarFingerprints(detection->fingerprint, last.fingerprint);
+    recordStage(context, kStageFingerprint, start);
+    if (detection->similar) {
+      context->similarSkips++;
+      detection->similarFlags = last.flags;
+      detection->focusScore = last.focusScore;
+      dropChroma(&detection->chroma);
+      cvSetData(image, NULL, planes->yRowStride);
+      return;
+    }
+  }
+
+  // luma only. Scored over the whole frame, as MIN_FOCUS_SCORE in CardScanner was tuned for that
+  // score; the pre-filter and fingerprint above are what look at the guide window only.
+  start = nowMicros();
+  detection->focusScore = dmz_focus_score(image, false);
+  recordStage(context, kStageFocusScore, start);
+
+  dmz_trace_log("focus score: %f", detection->focusScore);
+  if (detection->focusScore >= context->minFocusScore) {
+    bool tracked = false;
+    if (context->trackCorners) {
+      // luma only
+      start = nowMicros();
+      tracked = trackCorners(context, image, orientation, &detection->corner_points);
+      recordStage(context, kStageTrackCorners, start);
+      if (tracked) {
+        detection->cardDetected = true;
+        detection->found_edges = context->track.edges;
+      }
+    }
+
+    if (!tracked) {
+      // the dmz searches for edges in all three planes, so this is the first stage that needs
+      // chroma. It finds the guide frame from the size of the planes, so they are passed whole.
+      ensureChroma(context, &detection->chroma);
+
+      start = nowMicros();
+      detection->cardDetected = dmz_detect_edges(image, detection->chroma.cb, detection->chroma.cr,
+                                                 orientation,
+                                                 &detection->found_edges, &detection->corner_points
+                                                );
+      recordStage(context, kStageDetectEdges, start);
+      if (detection->cardDetected) {
+        context->track.edges = detection->found_edges;
+      }
+    }
+
+    if (context->trackCorners) {
+      if (detection->cardDetected) {
+        updateTrack(context, orientation, detection->corner_points, tracked);
+      }
+      else {
+        context->track.active = false;
+      }
+    }
+
+    if (detection->cardDetected && needCardImage) {
+      // tracking doesn't look at chroma, but the card image does
+      ensureChroma(context, &detection->chroma);
+    }
+
+    // the warped luma card feeds recognition and the card image; in detect-only mode without a
+    // card image, nothing looks at it.
+    if (detection->cardDetected && (!context->detectOnly || needCardImage)) {
+      // the warped card is a copy, so the frame can be released after this.
+      start = nowMicros();
+      transformCardInto(&context->arena, &context->arena.cardY, image, detection->corner_points,
+                        orientation, false);
+      detection->cardY = context->arena.cardY;
+      recordStage(context, kStageTransformCard, start);
+    }
+  }
+
+  if (!(detection->cardDetected && needCardImage)) {
+    // nothing after this point needs chroma
+    dropChroma(&detection->chroma);
+  }
+  // the chroma images are copies; the frame itself is not referenced past this point
+  forgetFrame(&detection->chroma);
+  cvSetData(image, NULL, planes->yRowStride);
+}
+
+static void swapCandidates(Candidate *a, Candidate *b) {
+  Candidate t = *a;
+  *a = *b;
+  *b = t;
+}
 
-    cvReleaseImageHeader(&cardResult);
-    cvReleaseImage(&bigCb);
-    cvReleaseImage(&bigCr);
+/* How likely the warped card is to be read, from 0 to 1: sharp, without glare, well exposed and
+ * seen roughly face on.
+ */
+static float candidateQuality(ScannerContext *context, IplImage *cardY, float focusScore,
+    dmz_corner_points c) {
+  // twice the minimum focus score is as sharp as it needs to be
+  float focus = context->minFocusScore > 0 ? MIN(1, focusScore / (2 * context->minFocusScore)) : 1;
+
+  int sum = 0;
+  int glare = 0;
+  int samples = 0;
+  for (int y = 0; y < cardY->height; y += 2) {
+    const uint8_t *row = (const uint8_t *)cardY->imageData + y * cardY->widthStep;
+    for (int x = 0; x < cardY->width; x += 2) {
+      sum += row[x];
+      glare += row[x] >= 250;
+      samples++;
+    }
   }
+  // a quarter of the card blown out leaves nothing to read
+  float glareFree = MAX(0, 1 - 4.0f * glare / samples);
+  float exposure = 1 - fabsf((float)sum / samples - 128) / 128;
+
+  // opposite sides of a card seen face on are the same length
+  float top = hypotf(c.top_right.x - c.top_left.x, c.top_right.y - c.top_left.y);
+  float bottom = hypotf(c.bottom_right.x - c.bottom_left.x, c.bottom_right.y - c.bottom_left.y);
+  float left = hypotf(c.bottom_left.x - c.top_left.x, c.bottom_left.y - c.top_left.y);
+  float right = hypotf(c.bottom_right.x - c.top_right.x, c.bottom_right.y - c.top_right.y);
+  float faceOn = (MIN(top, bottom) / MAX(MAX(top, bottom), 1)) * (MIN(left, right) / MAX(MAX(left, right), 1));
+
+  return focus * glareFree * exposure * faceOn;
+}
+
+/* Feeds one warped card to the recognizer. Returns true, with the number in frameResult, once the
+ * scan is complete.
+ */
+static bool recognize(ScannerContext *context, IplImage *cardY, const RecognizedFrame *seen,
+    jboolean jScanExpiry, ScanFrameResult *frameResult) {
+  FrameScanResult result;
+  result.focus_score = seen->focusScore;
+  result.flipped = isFlipped(context);
+  int64_t start = nowMicros();
+  scanner_add_frame_with_expiry(&context->scannerState, cardY, jScanExpiry, &result);
+  recordStage(context, kStageRecognize, start);
+  rememberRecognized(context, seen);
+  if (result.usable) {
+    ScannerResult scanResult;
+    scanner_result(&context->scannerState, &scanResult);
+
+    if (scanResult.complete) {
+      setScanCardNumberResult(frameResult, &scanResult);
+      return true;
+    }
+  }
+  else if (result.upside_down) {
+    setFlipped(context, !isFlipped(context));
+  }
+  return false;
+}
+
+/* Adds the frame to the candidates, and once there are candidateWindow of them, recognizes the
+ * best candidateBudget. Candidates too old to be part of the current window are dropped.
+ */
+static bool recognizeBest(ScannerContext *context, FrameDetection *detection,
+    const RecognizedFrame *seen, jboolean jScanExpiry, ScanFrameResult *frameResult) {
+  int kept = 0;
+  for (int i = 0; i < context->numCandidates; i++) {
+    if (detection->frame - context->candidates[i].frame < 2 * context->candidateWindow) {
+      swapCandidates(&context->candidates[kept++], &context->candidates[i]);
+    }
+  }
+  context->numCandidates = kept;
+
+  Candidate *candidate = &context->candidates[context->numCandidates++];
+  scratchImage(&context->recognitionArena, &candidate->cardY, cvGetSize(detection->cardY), 1);
+  cvCopy(detection->cardY, candidate->cardY);
+  candidate->seen = *seen;
+  candidate->focusScore = detection->focusScore;
+  candidate->quality = candidateQuality(context, detection->cardY, detection->focusScore,
+                                        detection->corner_points);
+  candidate->frame = detection->frame;
+  if (context->numCandidates < context->candidateWindow) {
+    return false;
+  }
+
+  // best first; there are only a handful
+  for (int i = 1; i < context->numCandidates; i++) {
+    for (int j = i; j > 0 && context->candidates[j].quality > context->candidates[j - 1].quality; j--) {
+      swapCandidates(&context->candidates[j], &context->candidates[j - 1]);
+    }
+  }
+  bool complete = false;
+  for (int i = 0; i < context->candidateBudget && !complete; i++) {
+    Candidate *best = &context->candidates[i];
+    dmz_debug_log("recognizing candidate with quality %f", best->quality);
+    complete = recognize(context, best->cardY, &best->seen, jScanExpiry, frameResult);
+  }
+  context->numCandidates = 0;
+  return complete;
+}
+
+static void renderCardImage(JNIEnv *env, ScannerContext *context, jobject jCardResultBitmap,
+    IplImage *cardY, IplImage *cb, IplImage *cr, dmz_corner_points corner_points, int orientation) {
+  int64_t start = nowMicros();
+  setDetectedCardImage(env, context, jCardResultBitmap, cardY, cb, cr, corner_points, orientation);
+  recordStage(context, kStageCardImage, start);
+}
+
+static void swapImages(IplImage **a, IplImage **b) {
+  IplImage *t = *a;
+  *a = *b;
+  *b = t;
+}
+
+/* Where the images a FrameDetection points at are held: in the arena, or in a pending frame. */
+struct ImageOwner {
+  IplImage **cardY;
+  IplImage **cb;
+  IplImage **cr;
+};
+
+/* Makes the frame context->bestFrame if it is sharper than the one held there, by swapping its
+ * images with the best frame's. detection keeps pointing at the frame's images.
+ */
+static void keepIfBest(ScannerContext *context, FrameDetection *detection, ImageOwner owner,
+    int orientation) {
+  BestFrame *best = &context->bestFrame;
+  if (best->valid && best->focusScore >= detection->focusScore) {
+    return;
+  }
+  swapImages(owner.cardY, &best->cardY);
+  swapImages(owner.cb, &best->cb);
+  swapImages(owner.cr, &best->cr);
+  best->valid = true;
+  best->focusScore = detection->focusScore;
+  best->corner_points = detection->corner_points;
+  best->orientation = orientation;
+}
+
+/* Fills in what detection found: focus, edges and whether there is a card. Returns true if there is
+ * a card for recognizeDetection to look at.
+ */
+static bool reportDetection(ScannerContext *context, FrameDetection *detection,
+    ScanFrameResult *frameResult) {
+  memset(frameResult, 0, sizeof(ScanFrameResult));
+  frameResult->focus_score = detection->focusScore;
+  if (detection->rejectedEarly) {
+    frameResult->flags = kScanResultRejectedEarly;
+    return false;
+  }
+  if (detection->similar) {
+    // report what was seen last time, so the UI and autofocus carry on as if it were scanned
+    frameResult->flags = detection->similarFlags | kScanResultUnchanged;
+    return false;
+  }
+  if (detection->focusScore < context->minFocusScore) {
+    return false;
+  }
+
+  frameResult->flags = edgeFlags(detection->found_edges);
+  if (!detection->cardDetected) {
+    return false;
+  }
+  frameResult->flags |= kScanResultCardDetected;
+  return true;
+}
+
+/* Runs recognition on the warped card of a frame reportDetection found a card in, renders the
+ * result image and adds the outcome to frameResult. Only touches state of the recognition stage,
+ * so that it can run on another thread than detection.
+ */
+static void recognizeDetection(JNIEnv *env, ScannerContext *context, jobject jCardResultBitmap,
+    jboolean jScanExpiry, int orientation, FrameDetection *detection, ImageOwner owner,
+    ScanFrameResult *frameResult) {
+  bool complete = false;
+  if (!context->detectOnly) {
+    // what detection compares later frames with, once this one has been recognized
+    RecognizedFrame seen;
+    seen.valid = detection->hasFingerprint;
+    seen.frame = detection->frame;
+    memcpy(seen.fingerprint, detection->fingerprint, kFingerprintSize);
+    seen.focusScore = detection->focusScore;
+    seen.flags = frameResult->flags;
+    if (context->candidateWindow > 0) {
+      complete = recognizeBest(context, detection, &seen, jScanExpiry, frameResult);
+    }
+    else {
+      complete = recognize(context, detection->cardY, &seen, jScanExpiry, frameResult);
+    }
+  }
+
+  if (jCardResultBitmap != NULL && hasChroma(&detection->chroma)) {
+    if (!context->deferCardImage) {
+      renderCardImage(env, context, jCardResultBitmap, detection->cardY,
+                      detection->chroma.cb, detection->chroma.cr,
+                      detection->corner_points, orientation);
+    } else {
+      keepIfBest(context, detection, owner, orientation);
+      // detect-only mode reports the first card it sees
+      if (complete || context->detectOnly) {
+        BestFrame *best = &context->bestFrame;
+        renderCardImage(env, context, jCardResultBitmap, best->cardY, best->cb, best->cr,
+                        best->corner_points, best->orientation);
+        clearBestFrame(best);
+      }
+    }
+  }
+  detection->cardY = NULL;
+  dropChroma(&detection->chroma);
+}
+
+/* Both stages, one after the other. */
+void finishScan(JNIEnv *env, ScannerContext *context, jobject jCardResultBitmap,
+    jboolean jScanExpiry, int orientation, FrameDetection *detection, ScanFrameResult *frameResult) {
+  if (reportDetection(context, detection, frameResult)) {
+    ScratchArena *arena = &context->arena;
+    ImageOwner owner = {&arena->cardY, &arena->cb, &arena->cr};
+    recognizeDetection(env, context, jCardResultBitmap, jScanExpiry, orientation, detection, owner,
+                       frameResult);
+  }
+  detection->cardY = NULL;
+  dropChroma(&detection->chroma);
+}
+
+ScanFrameResult *getResultBuffer(JNIEnv *env, jobject jResultBuffer) {
+  void *address = env->GetDirectBufferAddress(jResultBuffer);
+  if (address == NULL || env->GetDirectBufferCapacity(jResultBuffer) < (jlong)sizeof(ScanFrameResult)) {
+    dmz_error_log("result buffer must be a direct buffer of at least %i bytes", (int)sizeof(ScanFrameResult));
+    return NULL;
+  }
+  return (ScanFrameResult *)address;
 }
 
 /* This method forms the core of card.io scanning. All others (nCardDetected & nGetFocusScore) */
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nScanFrame(JNIEnv *env, jobject thiz,
-    jbyteArray jb, jint width, jint height, jint orientation, jobject dinfo,
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nScanFrame(JNIEnv *env, jclass clazz,
+    jlong handle, jbyteArray jb, jint width, jint height, jint orientation, jobject jResultBuffer,
     jobject jCardResultBitmap, jboolean jScanExpiry) {
-  dmz_trace_log("Java_io_card_payment_CardScanner_nScanFrame ... width:%i height:%i orientation:%i", width, height, orientation);
+  dmz_trace_log("Java_io_card_payment_NativeRecognizer_nScanFrame ... width:%i height:%i orientation:%i", width, height, orientation);
 
   if (orientation == 0) {
     dmz_error_log("orientation is 0. Nothing good can come from this.");
     return;
   }
 
-  if (flipped) {
+  ScannerContext *context = contextFromHandle(handle);
+  ScanFrameResult *resultBuffer = getResultBuffer(env, jResultBuffer);
+  if (context == NULL || resultBuffer == NULL) {
+    return;
+  }
+
+  if (isFlipped(context)) {
     orientation = dmz_opposite_orientation(orientation);
   }
 
-  FrameScanResult result;
+  int64_t frameStart = nowMicros();
 
-  IplImage *image = cvCreateImageHeader(cvSize(width, height), IPL_DEPTH_8U, 1);
-  jbyte *jBytes = env->GetByteArrayElements(jb, 0);
-  image->imageData = (char *)jBytes;
-
-  float focusScore = dmz_focus_score(image, false);
-  env->SetFloatField(dinfo, detectionInfoId.focusScore, focusScore);
-  dmz_trace_log("focus score: %f", focusScore);
-  if (focusScore >= minFocusScore) {
-
-    IplImage *cbcr = cvCreateImageHeader(cvSize(width / 2, height / 2), IPL_DEPTH_8U, 2);
-    cbcr->imageData = ((char *)jBytes) + width * height;
-    IplImage *cb, *cr;
-
-    // Note: cr and cb are reversed here because Android uses android.graphics.ImageFormat.NV21. This is actually YCrCb rather than YCbCr!
-    dmz_deinterleave_uint8_c2(cbcr, &cr, &cb);
-
-    cvReleaseImageHeader(&cbcr);
-
-    dmz_edges found_edges;
-    dmz_corner_points corner_points;
-    bool cardDetected = dmz_detect_edges(image, cb, cr,
-                                         orientation,
-                                         &found_edges, &corner_points
-                                        );
-
-    updateEdgeDetectDisplay(env, thiz, dinfo, found_edges);
-
-    if (cardDetected) {
-      IplImage *cardY = NULL;
-      dmz_transform_card(NULL, image, corner_points, orientation, false, &cardY);
-
-      if (!detectOnly) {
-        result.focus_score = focusScore;
-        result.flipped = flipped;
-        scanner_add_frame_with_expiry(&scannerState, cardY, jScanExpiry, &result);
-        if (result.usable) {
-          ScannerResult scanResult;
-          scanner_result(&scannerState, &scanResult);
-
-          if (scanResult.complete) {
-            setScanCardNumberResult(env, dinfo, &scanResult);
-            logDinfo(env, dinfo);
-          }
-        }
-        else if (result.upside_down) {
-          flipped = !flipped;
-        }
-      }
+  // Critical access avoids copying the frame in (and back out) on runtimes that would otherwise
+  // duplicate the array. No JNI calls are allowed until it is released.
+  FrameDetection detection;
+  jbyte *jBytes = (jbyte *)env->GetPrimitiveArrayCritical(jb, NULL);
+  if (jBytes == NULL) {
+    dmz_error_log("couldn't access frame data");
+    return;
+  }
+  FramePlanes planes = nv21Planes((char *)jBytes, width, height);
+  detectCard(context, &planes, width, height, orientation, jCardResultBitmap != NULL, &detection);
+  // the frame was only read, so there is nothing to copy back.
+  env->ReleasePrimitiveArrayCritical(jb, jBytes, JNI_ABORT);
+
+  ScanFrameResult frameResult;
+  finishScan(env, context, jCardResultBitmap, jScanExpiry, orientation, &detection, &frameResult);
+  memcpy(resultBuffer, &frameResult, sizeof(ScanFrameResult));
+  recordStage(context, kStageFrame, frameStart);
+}
 
-      setDetectedCardImage(env, jCardResultBitmap, cardY, cb, cr, corner_points, orientation);
-      cvReleaseImage(&cardY);
-    }
+/* Same as nScanFrame, for frames that already live in a direct ByteBuffer. */
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nScanFrameDirect(JNIEnv *env, jclass clazz,
+    jlong handle, jobject jFrameBuffer, jint width, jint height, jint orientation, jobject jResultBuffer,
+    jobject jCardResultBitmap, jboolean jScanExpiry) {
+  dmz_trace_log("Java_io_card_payment_NativeRecognizer_nScanFrameDirect ... width:%i height:%i orientation:%i", width, height, orientation);
 
-    cvReleaseImage(&cb);
-    cvReleaseImage(&cr);
+  if (orientation == 0) {
+    dmz_error_log("orientation is 0. Nothing good can come from this.");
+    return;
   }
 
-  cvReleaseImageHeader(&image);
-  env->ReleaseByteArrayElements(jb, jBytes, 0);
+  ScannerContext *context = contextFromHandle(handle);
+  ScanFrameResult *resultBuffer = getResultBuffer(env, jResultBuffer);
+  if (context == NULL || resultBuffer == NULL) {
+    return;
+  }
+
+  char *frameData = (char *)env->GetDirectBufferAddress(jFrameBuffer);
+  if (frameData == NULL || env->GetDirectBufferCapacity(jFrameBuffer) < width * height * 3 / 2) {
+    dmz_error_log("frame buffer is not a direct buffer holding a %ix%i NV21 frame", width, height);
+    return;
+  }
+
+  if (isFlipped(context)) {
+    orientation = dmz_opposite_orientation(orientation);
+  }
+
+  int64_t frameStart = nowMicros();
+  FrameDetection detection;
+  FramePlanes planes = nv21Planes(frameData, width, height);
+  detectCard(context, &planes, width, height, orientation, jCardResultBitmap != NULL, &detection);
+  ScanFrameResult frameResult;
+  finishScan(env, context, jCardResultBitmap, jScanExpiry, orientation, &detection, &frameResult);
+  memcpy(resultBuffer, &frameResult, sizeof(ScanFrameResult));
+  recordStage(context, kStageFrame, frameStart);
+}
+
+/* Finds the planes of a YUV 4:2:0 frame held in direct buffers (the planes of a YUV_420_888 Image),
+ * checking that they are large enough for a width x height frame with the given strides.
+ */
+static bool directPlanes(JNIEnv *env, jobject jY, jint yRowStride, jobject jCb, jobject jCr,
+    jint chromaRowStride, jint chromaPixelStride, jint width, jint height, FramePlanes *planes) {
+  planes->y = (char *)env->GetDirectBufferAddress(jY);
+  planes->cb = (char *)env->GetDirectBufferAddress(jCb);
+  planes->cr = (char *)env->GetDirectBufferAddress(jCr);
+  planes->yRowStride = yRowStride;
+  planes->chromaRowStride = chromaRowStride;
+  planes->chromaPixelStride = chromaPixelStride;
+  if (planes->y == NULL || planes->cb == NULL || planes->cr == NULL) {
+    dmz_error_log("frame planes must be direct buffers");
+    return false;
+  }
+  if (width < 2 || height < 2 || yRowStride < width || chromaPixelStride < 1
+      || chromaRowStride < chromaPixelStride * (width / 2 - 1) + 1) {
+    dmz_error_log("bad strides for a %ix%i frame: %i, %i, %i", width, height, yRowStride,
+                  chromaRowStride, chromaPixelStride);
+    return false;
+  }
+  // the last row of a plane need not be padded
+  jlong lumaSize = (jlong)yRowStride * (height - 1) + width;
+  jlong chromaSize = (jlong)chromaRowStride * (height / 2 - 1)
+                     + chromaPixelStride * (width / 2 - 1) + 1;
+  if (env->GetDirectBufferCapacity(jY) < lumaSize || env->GetDirectBufferCapacity(jCb) < chromaSize
+      || env->GetDirectBufferCapacity(jCr) < chromaSize) {
+    dmz_error_log("frame planes are too small for a %ix%i frame", width, height);
+    return false;
+  }
+  return true;
+}
+
+/* Same as nScanFrame, for a frame whose planes are held in direct buffers, such as a YUV_420_888
+ * Image from Camera2. The planes are read in place, padded rows and all.
+ */
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nScanFramePlanes(JNIEnv *env, jclass clazz,
+    jlong handle, jobject jY, jint yRowStride, jobject jCb, jobject jCr, jint chromaRowStride,
+    jint chromaPixelStride, jint width, jint height, jint orientation, jobject jResultBuffer,
+    jobject jCardResultBitmap, jboolean jScanExpiry) {
+  dmz_trace_log("Java_io_card_payment_NativeRecognizer_nScanFramePlanes ... width:%i height:%i orientation:%i", width, height, orientation);
+
+  if (orientation == 0) {
+    dmz_error_log("orientation is 0. Nothing good can come from this.");
+    return;
+  }
+
+  ScannerContext *context = contextFromHandle(handle);
+  ScanFrameResult *resultBuffer = getResultBuffer(env, jResultBuffer);
+  if (context == NULL || resultBuffer == NULL) {
+    return;
+  }
+
+  FramePlanes planes;
+  if (!directPlanes(env, jY, yRowStride, jCb, jCr, chromaRowStride, chromaPixelStride, width,
+                    height, &planes)) {
+    return;
+  }
+
+  if (isFlipped(context)) {
+    orientation = dmz_opposite_orientation(orientation);
+  }
+
+  int64_t frameStart = nowMicros();
+  FrameDetection detection;
+  detectCard(context, &planes, width, height, orientation, jCardResultBitmap != NULL, &detection);
+  ScanFrameResult frameResult;
+  finishScan(env, context, jCardResultBitmap, jScanExpiry, orientation, &detection, &frameResult);
+  memcpy(resultBuffer, &frameResult, sizeof(ScanFrameResult));
+  recordStage(context, kStageFrame, frameStart);
+}
+
+/* Two-stage scanning: nDetectFrame runs everything up to and including the warp of the card, and
+ * hands frames with a card to nRecognizeFrame through one of kPipelineSlots pending frames, so the
+ * two can run on different threads, detecting one frame while the previous one is recognized.
+ * A pending frame owns its images; they are swapped with the arena's, not copied.
+ */
+#define kPipelineSlots 2
+
+struct PendingFrame {
+  FrameDetection detection;
+  ScanFrameResult frameResult;  // as reported by detection
+  int orientation;
+  bool flipped;                 // as it was when the frame was detected
+  int64_t frameStart;           // when detection started, for kStageFrame
+  IplImage *cardY;
+  IplImage *cb;
+  IplImage *cr;
+};
+
+static PendingFrame *pendingFrame(ScannerContext *context, int slot) {
+  if (slot < 0 || slot >= kPipelineSlots) {
+    dmz_error_log("no pipeline slot %i", slot);
+    return NULL;
+  }
+  if (context->pending == NULL) {
+    context->pending = new PendingFrame[kPipelineSlots];
+    memset(context->pending, 0, sizeof(PendingFrame) * kPipelineSlots);
+  }
+  return &context->pending[slot];
+}
+
+static void destroyPendingFrames(ScannerContext *context) {
+  if (context->pending == NULL) {
+    return;
+  }
+  for (int i = 0; i < kPipelineSlots; i++) {
+    cvReleaseImage(&context->pending[i].cardY);
+    cvReleaseImage(&context->pending[i].cb);
+    cvReleaseImage(&context->pending[i].cr);
+  }
+  delete[] context->pending;
+  context->pending = NULL;
+}
+
+/* Reports what detection found to resultBuffer and, if there is a card to recognize, moves the frame
+ * into pending. Returns true if it did.
+ */
+static jboolean handOffDetection(ScannerContext *context, PendingFrame *pending,
+    FrameDetection *detection, int orientation, bool flipped, int64_t frameStart,
+    ScanFrameResult *resultBuffer) {
+  ScanFrameResult frameResult;
+  bool handOff = reportDetection(context, detection, &frameResult);
+  memcpy(resultBuffer, &frameResult, sizeof(ScanFrameResult));
+  if (!handOff) {
+    dropChroma(&detection->chroma);
+    // this frame is done
+    recordStage(context, kStageFrame, frameStart);
+    return false;
+  }
+
+  // the pending frame takes the images detection points at; the arena gets the ones it had
+  ScratchArena *arena = &context->arena;
+  swapImages(&arena->cardY, &pending->cardY);
+  swapImages(&arena->cb, &pending->cb);
+  swapImages(&arena->cr, &pending->cr);
+  pending->detection = *detection;
+  pending->frameResult = frameResult;
+  pending->orientation = orientation;
+  pending->flipped = flipped;
+  pending->frameStart = frameStart;
+  return true;
 }
 
+/* Detection stage of nScanFrame. Writes what it found to the result buffer, and returns true if
+ * the frame was left in pipeline slot for nRecognizeFrame.
+ */
 extern "C"
-JNIEXPORT jint JNICALL Java_io_card_payment_CardScanner_nGetNumFramesScanned(JNIEnv *env, jobject thiz) {
-  return scannerState.session_analytics.num_frames_scanned;
+JNIEXPORT jboolean JNICALL Java_io_card_payment_NativeRecognizer_nDetectFrame(JNIEnv *env, jclass clazz,
+    jlong handle, jint slot, jbyteArray jb, jint width, jint height, jint orientation, jobject jResultBuffer,
+    jboolean jWantCardImage) {
+  ScannerContext *context = contextFromHandle(handle);
+  ScanFrameResult *resultBuffer = getResultBuffer(env, jResultBuffer);
+  if (orientation == 0 || context == NULL || resultBuffer == NULL) {
+    return false;
+  }
+  PendingFrame *pending = pendingFrame(context, slot);
+  if (pending == NULL) {
+    return false;
+  }
+
+  bool flipped = isFlipped(context);
+  if (flipped) {
+    orientation = dmz_opposite_orientation(orientation);
+  }
+
+  int64_t frameStart = nowMicros();
+  FrameDetection detection;
+  jbyte *jBytes = (jbyte *)env->GetPrimitiveArrayCritical(jb, NULL);
+  if (jBytes == NULL) {
+    dmz_error_log("couldn't access frame data");
+    return false;
+  }
+  FramePlanes planes = nv21Planes((char *)jBytes, width, height);
+  detectCard(context, &planes, width, height, orientation, jWantCardImage, &detection);
+  env->ReleasePrimitiveArrayCritical(jb, jBytes, JNI_ABORT);
+
+  return handOffDetection(context, pending, &detection, orientation, flipped, frameStart,
+                          resultBuffer);
 }
 
+/* Same as nDetectFrame, for a frame whose planes are held in direct buffers (see nScanFramePlanes).
+ */
+extern "C"
+JNIEXPORT jboolean JNICALL Java_io_card_payment_NativeRecognizer_nDetectFramePlanes(JNIEnv *env, jclass clazz,
+    jlong handle, jint slot, jobject jY, jint yRowStride, jobject jCb, jobject jCr,
+    jint chromaRowStride, jint chromaPixelStride, jint width, jint height, jint orientation,
+    jobject jResultBuffer, jboolean jWantCardImage) {
+  ScannerContext *context = contextFromHandle(handle);
+  ScanFrameResult *resultBuffer = getResultBuffer(env, jResultBuffer);
+  if (orientation == 0 || context == NULL || resultBuffer == NULL) {
+    return false;
+  }
+  PendingFrame *pending = pendingFrame(context, slot);
+  if (pending == NULL) {
+    return false;
+  }
+  FramePlanes planes;
+  if (!directPlanes(env, jY, yRowStride, jCb, jCr, chromaRowStride, chromaPixelStride, width,
+                    height, &planes)) {
+    return false;
+  }
+
+  bool flipped = isFlipped(context);
+  if (flipped) {
+    orientation = dmz_opposite_orientation(orientation);
+  }
+
+  int64_t frameStart = nowMicros();
+  FrameDetection detection;
+  detectCard(context, &planes, width, height, orientation, jWantCardImage, &detection);
+  return handOffDetection(context, pending, &detection, orientation, flipped, frameStart,
+                          resultBuffer);
+}
+
+/* Recognition stage of nScanFrame, for a frame nDetectFrame left in slot. Writes the complete
+ * result, including what detection found, to the result buffer.
+ */
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nRecognizeFrame(JNIEnv *env, jclass clazz,
+    jlong handle, jint slot, jobject jResultBuffer, jobject jCardResultBitmap, jboolean jScanExpiry) {
+  ScannerContext *context = contextFromHandle(handle);
+  ScanFrameResult *resultBuffer = getResultBuffer(env, jResultBuffer);
+  if (context == NULL || resultBuffer == NULL) {
+    return;
+  }
+  PendingFrame *pending = pendingFrame(context, slot);
+  if (pending == NULL) {
+    return;
+  }
+
+  FrameDetection *detection = &pending->detection;
+  int orientation = pending->orientation;
+  if (pending->flipped != isFlipped(context) && detection->cardY != NULL) {
+    // The previous frame found the card upside down after this one was warped. Warping with the
+    // opposite orientation gives the same card turned around, so turn it around.
+    cvFlip(detection->cardY, NULL, -1);
+    orientation = dmz_opposite_orientation(orientation);
+  }
 
+  ScanFrameResult frameResult = pending->frameResult;
+  ImageOwner owner = {&pending->cardY, &pending->cb, &pending->cr};
+  recognizeDetection(env, context, jCardResultBitmap, jScanExpiry, orientation, detection, owner,
+                     &frameResult);
+  memcpy(resultBuffer, &frameResult, sizeof(ScanFrameResult));
+  // from the start of detection, including the wait for this stage
+  recordStage(context, kStageFrame, pending->frameStart);
+}
 
+extern "C"
+JNIEXPORT jint JNICALL Java_io_card_payment_NativeRecognizer_nGetNumFramesScanned(JNIEnv *env, jclass clazz,
+    jlong handle) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context == NULL) {
+    return 0;
+  }
+  return context->scannerState.session_analytics.num_frames_scanned;
+}
 
+/* Copies the latency histograms of all stages, stage by stage, into counts. */
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_NativeRecognizer_nGetStageLatencies(JNIEnv *env, jclass clazz,
+    jlong handle, jintArray counts) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context == NULL) {
+    return;
+  }
+  if (env->GetArrayLength(counts) < kStageCount * kLatencyBuckets) {
+    dmz_error_log("latency array must hold %i counts", kStageCount * kLatencyBuckets);
+    return;
+  }
+  env->SetIntArrayRegion(counts, 0, kStageCount * kLatencyBuckets, &context->stageLatency[0][0]);
+}
+
+/* Number of scratch images allocated by this context so far. Stops growing once the pipeline has
+ * seen a frame of each kind (blurry, with a card, complete); see HostRecognizerTest.
+ */
+extern "C"
+JNIEXPORT jlong JNICALL Java_io_card_payment_NativeRecognizer_nGetScratchAllocations(JNIEnv *env, jclass clazz,
+    jlong handle) {
+  ScannerContext *context = contextFromHandle(handle);
+  if (context == NULL) {
+    return 0;
+  }
+  return context->arena.allocations + context->recognitionArena.allocations;
+}
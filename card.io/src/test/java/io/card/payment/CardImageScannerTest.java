@@ -0,0 +1,51 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CardImageScannerTest {
+
+    @Test
+    public void argbToNV21_usesVideoRange() {
+        int width = 4;
+        int height = 2;
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = (i % width) < 2 ? 0xff000000 : 0xffffffff;
+        }
+        byte[] nv21 = new byte[width * height * 3 / 2];
+
+        CardImageScanner.argbToNV21(argb, width, height, nv21);
+
+        assertEquals(16, nv21[0] & 0xff);
+        assertEquals(235, nv21[3] & 0xff);
+        // grey has no chroma
+        for (int i = width * height; i < nv21.length; i++) {
+            assertEquals(128, nv21[i] & 0xff);
+        }
+    }
+
+    @Test
+    public void argbToNV21_interleavesVBeforeU() {
+        int[] red = { 0xffff0000, 0xffff0000, 0xffff0000, 0xffff0000 };
+        byte[] nv21 = new byte[6];
+
+        CardImageScanner.argbToNV21(red, 2, 2, nv21);
+
+        assertTrue((nv21[4] & 0xff) > 128);
+        assertTrue((nv21[5] & 0xff) < 128);
+    }
+
+    @Test
+    public void confidence_isSharpnessUpToTwiceTheMinimumFocus() {
+        assertEquals(0f, CardImageScanner.confidence(0), 0.0001f);
+        assertEquals(0.5f, CardImageScanner.confidence(CardScanner.MIN_FOCUS_SCORE), 0.0001f);
+        assertEquals(1f, CardImageScanner.confidence(2 * CardScanner.MIN_FOCUS_SCORE), 0.0001f);
+        assertEquals(1f, CardImageScanner.confidence(100 * CardScanner.MIN_FOCUS_SCORE), 0.0001f);
+    }
+}
@@ -0,0 +1,166 @@
+package io.card.payment;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class DetectionInfoTest {
+
+    private static final int WARM_UP_FRAMES = 1000;
+    private static final int MEASURED_FRAMES = 10000;
+
+    @Test
+    public void reset_clearsPreviousFrame() {
+        DetectionInfo dInfo = new DetectionInfo();
+        dInfo.complete = true;
+        dInfo.setEdgeMask(DetectionInfo.EDGE_TOP | DetectionInfo.EDGE_LEFT);
+        dInfo.prediction[3] = 7;
+        dInfo.detectedCard.xoff[3] = 42;
+
+        dInfo.reset();
+
+        assertFalse(dInfo.complete);
+        assertEquals(0, dInfo.edgeMask());
+        assertEquals(-1, dInfo.prediction[0]);
+        assertEquals(0, dInfo.prediction[3]);
+        assertEquals(0, dInfo.detectedCard.xoff[3]);
+        assertNull(dInfo.detectedCard.scanId);
+    }
+
+    @Test
+    public void creditCard_isACopyWithScanId() {
+        DetectionInfo dInfo = new DetectionInfo();
+        for (int i = 0; i < 16; i++) {
+            dInfo.prediction[i] = 4;
+        }
+        dInfo.detectedCard.xoff[0] = 12;
+
+        CreditCard card = dInfo.creditCard();
+        dInfo.reset();
+
+        assertNotSame(dInfo.detectedCard, card);
+        assertNotNull(card.scanId);
+        assertEquals("4444444444444444", card.cardNumber);
+        assertEquals(12, card.xoff[0]);
+    }
+
+    @Test
+    public void scanLoop_doesNotAllocatePerFrame() {
+        Assume.assumeTrue("per-thread allocation counts not available", canCountAllocations());
+
+        final PreviewBufferPool pool = new PreviewBufferPool(64, 48, ImageFormat.NV21, 3);
+        Frame.Owner camera = new Frame.Owner() {
+            @Override
+            public void recycle(Frame frame) {
+                pool.recycle(null, frame.getData());
+            }
+        };
+        Frame[] frames = new Frame[pool.getDepth()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame(camera).setNv21(pool.getBuffer(i), 64, 48);
+        }
+        FrameQueue<Frame> queue = new FrameQueue<>(1, FrameQueue.DropPolicy.DROP_OLDEST);
+        ScanResultBuffer[] results = { edgesOnly(), completeCard() };
+        DetectionInfo scanInfo = new DetectionInfo();
+
+        runFrames(WARM_UP_FRAMES, pool, frames, queue, results, scanInfo);
+
+        long before = allocatedBytes();
+        runFrames(MEASURED_FRAMES, pool, frames, queue, results, scanInfo);
+        long allocated = allocatedBytes() - before;
+
+        // allow for the bookkeeping of the measurement itself, but nothing that scales per frame
+        assertTrue("allocated " + allocated + " bytes over " + MEASURED_FRAMES + " frames",
+                allocated < MEASURED_FRAMES);
+    }
+
+    /**
+     * The Java side of CardScanner's per-frame path around the native scan: the source wraps a
+     * preview buffer in its {@link Frame}, the frame is queued, the scan thread decodes the result
+     * the recognizer wrote and releases the frame back to the pool.
+     */
+    private static void runFrames(int count, PreviewBufferPool pool, Frame[] frames,
+                                  FrameQueue<Frame> queue, ScanResultBuffer[] results,
+                                  DetectionInfo scanInfo) {
+        try {
+            for (int i = 0; i < count; i++) {
+                Frame delivered = frames[i % frames.length];
+                pool.onFrameDelivered(delivered.getData());
+                Frame dropped = queue.offer(delivered);
+                if (dropped != null) {
+                    dropped.release();
+                }
+
+                Frame frame = queue.take();
+                ScanResultBuffer result = results[i % results.length];
+                if (result.getFocusScore() >= CardScanner.MIN_FOCUS_SCORE) {
+                    result.decodeInto(scanInfo);
+                    scanInfo.predicted();
+                }
+                frame.release();
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static ScanResultBuffer edgesOnly() {
+        ScanResultBuffer result = new ScanResultBuffer();
+        ByteBuffer buffer = result.getBuffer();
+        buffer.putInt(ScanResultBuffer.FLAGS_OFFSET, DetectionInfo.EDGE_TOP
+                | DetectionInfo.EDGE_LEFT | ScanResultBuffer.FLAG_CARD_DETECTED);
+        buffer.putFloat(ScanResultBuffer.FOCUS_SCORE_OFFSET, CardScanner.MIN_FOCUS_SCORE * 2);
+        return result;
+    }
+
+    private static ScanResultBuffer completeCard() {
+        ScanResultBuffer result = new ScanResultBuffer();
+        ByteBuffer buffer = result.getBuffer();
+        buffer.putInt(ScanResultBuffer.FLAGS_OFFSET, DetectionInfo.EDGE_TOP
+                | DetectionInfo.EDGE_BOTTOM | DetectionInfo.EDGE_LEFT | DetectionInfo.EDGE_RIGHT
+                | ScanResultBuffer.FLAG_CARD_DETECTED | ScanResultBuffer.FLAG_COMPLETE);
+        buffer.putFloat(ScanResultBuffer.FOCUS_SCORE_OFFSET, CardScanner.MIN_FOCUS_SCORE * 2);
+        buffer.putInt(ScanResultBuffer.NUM_DIGITS_OFFSET, ScanResultBuffer.MAX_DIGITS);
+        buffer.putInt(ScanResultBuffer.EXPIRY_MONTH_OFFSET, 12);
+        buffer.putInt(ScanResultBuffer.EXPIRY_YEAR_OFFSET, 2030);
+        for (int i = 0; i < ScanResultBuffer.MAX_DIGITS; i++) {
+            buffer.putInt(ScanResultBuffer.DIGITS_OFFSET + i * 4, 4);
+            buffer.putInt(ScanResultBuffer.X_OFFSETS_OFFSET + i * 4, i * 20);
+        }
+        return result;
+    }
+
+    /**
+     * Only HotSpot-style JVMs count the bytes each thread allocates; ART doesn't.
+     */
+    private static boolean canCountAllocations() {
+        try {
+            Class<?> bean = Class.forName("com.sun.management.ThreadMXBean");
+            return bean.isInstance(ManagementFactory.getThreadMXBean())
+                    && ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .isThreadAllocatedMemorySupported();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,43 @@
+package io.card.payment;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreviewBufferPoolTest {
+
+    @Test
+    public void bufferSize_isExactNV21FrameSize() {
+        assertEquals(640 * 480 * 3 / 2, PreviewBufferPool.bufferSize(640, 480, ImageFormat.NV21));
+
+        PreviewBufferPool pool = new PreviewBufferPool(640, 480, ImageFormat.NV21, 3);
+        assertEquals(640 * 480 * 3 / 2, pool.getBufferSize());
+        assertEquals(3, pool.getDepth());
+    }
+
+    @Test
+    public void recycle_withoutCamera_returnsBufferToPool() {
+        PreviewBufferPool pool = new PreviewBufferPool(4, 4, ImageFormat.NV21, 2);
+        assertEquals(2, pool.countOwnedBy(PreviewBufferPool.Owner.POOL));
+
+        byte[] buffer = pool.getBuffer(1);
+        assertTrue(pool.onFrameDelivered(buffer));
+        assertEquals(PreviewBufferPool.Owner.SCANNER, pool.getOwner(1));
+
+        assertTrue(pool.recycle(null, buffer));
+        assertEquals(PreviewBufferPool.Owner.POOL, pool.getOwner(1));
+        assertEquals(0, pool.getReuseCount(1));
+
+        byte[] foreign = new byte[pool.getBufferSize()];
+        assertFalse(pool.onFrameDelivered(foreign));
+        assertFalse(pool.recycle(null, foreign));
+        assertEquals(0, pool.getReuseCount(0));
+    }
+}
@@ -0,0 +1,71 @@
+package io.card.payment;
+
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanMetricsTest {
+
+    @Test
+    public void bucketFor_matchesBucketBounds() {
+        // below 4 us a quarter octave is less than 1 us, so some of the first 8 buckets stay empty
+        assertEquals(0, LatencyHistogram.bucketFor(1));
+        for (int b = 8; b < LatencyHistogram.NUM_BUCKETS - 1; b++) {
+            long lower = LatencyHistogram.bucketLowerBoundMicros(b);
+            long upper = LatencyHistogram.bucketLowerBoundMicros(b + 1);
+            assertEquals(b, LatencyHistogram.bucketFor(lower));
+            assertEquals(b, LatencyHistogram.bucketFor(upper - 1));
+        }
+        assertEquals(LatencyHistogram.NUM_BUCKETS - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles_roundUpToTheirBucket() {
+        int[] counts = new int[ScanMetrics.NUM_COUNTS];
+        int frameOffset = ScanMetrics.Stage.FRAME.ordinal() * LatencyHistogram.NUM_BUCKETS;
+        // 90 frames at 10 ms, 10 at 100 ms
+        counts[frameOffset + LatencyHistogram.bucketFor(10000)] = 90;
+        counts[frameOffset + LatencyHistogram.bucketFor(100000)] = 10;
+
+        ScanMetrics metrics = new ScanMetrics(counts);
+
+        assertEquals(100, metrics.getHistogram(ScanMetrics.Stage.FRAME).getCount());
+        assertEquals(0, metrics.getHistogram(ScanMetrics.Stage.RECOGNIZE).getCount());
+        float p50 = metrics.getP50Millis(ScanMetrics.Stage.FRAME);
+        float p95 = metrics.getP95Millis(ScanMetrics.Stage.FRAME);
+        assertTrue("p50 " + p50, p50 > 10 && p50 <= 12.5f);
+        assertTrue("p95 " + p95, p95 > 100 && p95 <= 125);
+        assertEquals(0f, metrics.getP99Millis(ScanMetrics.Stage.RECOGNIZE));
+    }
+
+    @Test
+    public void scanAnalytics_survivesParcel() {
+        int[] counts = new int[ScanMetrics.NUM_COUNTS];
+        counts[ScanMetrics.Stage.FRAME.ordinal() * LatencyHistogram.NUM_BUCKETS
+                + LatencyHistogram.bucketFor(20000)] = 7;
+        ScanAnalytics analytics = new ScanAnalytics(120, 900, ScanAnalytics.NOT_REACHED, 1500,
+                40, 3, 12, 5, 8, 1, 2, 0, new ScanMetrics(counts));
+
+        Parcel parcel = Parcel.obtain();
+        analytics.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        ScanAnalytics copy = ScanAnalytics.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals(120, copy.getTimeToFirstFrameMillis());
+        assertEquals(900, copy.getTimeToEdgeLockMillis());
+        assertEquals(ScanAnalytics.NOT_REACHED, copy.getTimeToResultMillis());
+        assertEquals(40, copy.getFramesScanned());
+        assertEquals(12, copy.getFramesOutOfFocus());
+        assertEquals(5, copy.getFramesRejectedEarly());
+        assertEquals(8, copy.getFramesUnchanged());
+        assertEquals(2, copy.getAutoRefocusings());
+        assertEquals(7, copy.getStageLatencies().getHistogram(ScanMetrics.Stage.FRAME).getCount());
+    }
+}
@@ -0,0 +1,49 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class StageHandoffTest {
+
+    @Test
+    public void put_returnsOnceTaken() throws Exception {
+        final StageHandoff handoff = new StageHandoff();
+        final AtomicBoolean put = new AtomicBoolean();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    put.set(handoff.put(1));
+                } catch (InterruptedException e) {
+                    // fails below
+                }
+            }
+        };
+        producer.start();
+
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        assertEquals(1, handoff.take());
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertTrue(put.get());
+    }
+
+    @Test
+    public void close_wakesBothSides() throws Exception {
+        StageHandoff handoff = new StageHandoff();
+        handoff.close();
+
+        assertFalse(handoff.put(0));
+        assertEquals(StageHandoff.CLOSED, handoff.take());
+    }
+}
@@ -0,0 +1,569 @@
+package io.card.payment;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs the real recognizer, built for the host by src/main/jni/host/Makefile. Skipped unless
+ * the path of the library is given:
+ * <pre>
+ * ./gradlew :card.io:testDebugUnitTest -Dcardio.host.library=/path/to/libcardioRecognizer.so \
+ *     [-Dcardio.host.corpus=/path/to/dumps] [-Dcardio.host.benchmark=1000]
+ * </pre>
+ * The corpus is a directory of 640x480 NV21 frame dumps named after the card number they show,
+ * e.g. <code>4111111111111111_table.nv21</code>.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HostRecognizerTest {
+
+    static final String LIBRARY_PROPERTY = "cardio.host.library";
+    static final String CORPUS_PROPERTY = "cardio.host.corpus";
+    static final String BENCHMARK_PROPERTY = "cardio.host.benchmark";
+
+    private static final Pattern EXPECTED_NUMBER = Pattern.compile("^(\\d{15,16})");
+
+    private static boolean sLoaded;
+
+    @BeforeClass
+    public static void loadLibrary() {
+        String library = System.getProperty(LIBRARY_PROPERTY);
+        Assume.assumeTrue(LIBRARY_PROPERTY + " not set", library != null && library.length() > 0);
+        if (!sLoaded) {
+            System.load(library);
+            sLoaded = true;
+        }
+    }
+
+    @Test
+    public void blankFrame_findsNoCard() {
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            ByteBuffer frame = blankFrame();
+            ScanResultBuffer result = new ScanResultBuffer();
+
+            NativeRecognizer.nScanFrameDirect(handle, frame, CardImageScanner.FRAME_WIDTH,
+                    CardImageScanner.FRAME_HEIGHT, CardScanner.ORIENTATION_PORTRAIT,
+                    result.getBuffer(), null, true);
+
+            assertFalse(result.isCardDetected());
+            assertFalse(result.isComplete());
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    @Test
+    public void blankFrame_isRejectedByPrefilter() {
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            NativeRecognizer.nSetPrefilter(handle, CardScanner.PREFILTER_DECIMATION,
+                    CardScanner.PREFILTER_MIN_SCORE);
+            ScanResultBuffer result = new ScanResultBuffer();
+
+            NativeRecognizer.nScanFrameDirect(handle, blankFrame(), CardImageScanner.FRAME_WIDTH,
+                    CardImageScanner.FRAME_HEIGHT, CardScanner.ORIENTATION_PORTRAIT,
+                    result.getBuffer(), null, true);
+
+            assertTrue(result.isRejectedEarly());
+            assertEquals(0f, result.getFocusScore());
+            ScanMetrics metrics = ScanMetrics.fromNative(handle);
+            assertEquals(1, metrics.getHistogram(ScanMetrics.Stage.PREFILTER).getCount());
+            assertEquals(0, metrics.getHistogram(ScanMetrics.Stage.FOCUS_SCORE).getCount());
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    @Test
+    public void pipelinedFrames_recordFrameLatency() {
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            ByteBuffer direct = blankFrame();
+            byte[] frame = new byte[direct.capacity()];
+            direct.get(frame);
+            ScanResultBuffer result = new ScanResultBuffer();
+            for (int i = 0; i < 3; i++) {
+                NativeRecognizer.nDetectFrame(handle, 0, frame, CardImageScanner.FRAME_WIDTH,
+                        CardImageScanner.FRAME_HEIGHT, CardScanner.ORIENTATION_PORTRAIT,
+                        result.getBuffer(), false);
+            }
+
+            ScanMetrics metrics = ScanMetrics.fromNative(handle);
+            assertEquals(3, metrics.getHistogram(ScanMetrics.Stage.FRAME).getCount());
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    @Test
+    public void corpus_readsExpectedNumbers() {
+        List<File> dumps = corpus();
+        Assume.assumeTrue(CORPUS_PROPERTY + " not set", !dumps.isEmpty());
+
+        CardImageScanner scanner = new CardImageScanner(
+                Runtime.getRuntime().availableProcessors(), false);
+        List<String> failures = new ArrayList<>();
+        try {
+            List<CardImageScanner.Result> results = scanner.scanFiles(dumps);
+            for (int i = 0; i < dumps.size(); i++) {
+                String expected = expectedNumber(dumps.get(i));
+                CreditCard card = results.get(i).getCreditCard();
+                String actual = card != null ? card.cardNumber : null;
+                if (!expected.equals(actual)) {
+                    failures.add(dumps.get(i).getName() + ": read " + actual);
+                }
+            }
+        } finally {
+            scanner.close();
+        }
+        assertTrue(failures.size() + "/" + dumps.size() + " misread: " + failures,
+                failures.isEmpty());
+    }
+
+    @Test
+    public void steadyState_allocatesNoScratchImages() throws Exception {
+        List<ByteBuffer> inputs = new ArrayList<>();
+        for (File dump : corpus()) {
+            inputs.add(firstFrame(dump));
+        }
+        inputs.add(blankFrame());
+
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            ScanResultBuffer result = new ScanResultBuffer();
+            // warm up on every input, then check that going round again allocates nothing
+            scanAll(handle, inputs, result);
+            scanAll(handle, inputs, result);
+            long warm = NativeRecognizer.nGetScratchAllocations(handle);
+            scanAll(handle, inputs, result);
+            assertEquals(warm, NativeRecognizer.nGetScratchAllocations(handle));
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    @Test
+    public void steadyState_allocatesNoScratchImagesWithCard() throws Exception {
+        List<ByteBuffer> cards = new ArrayList<>();
+        for (File dump : corpus()) {
+            ByteBuffer frame = firstFrame(dump);
+            if (cardDetected(frame)) {
+                cards.add(frame);
+            }
+        }
+        Assume.assumeTrue("no corpus frame with a card", !cards.isEmpty());
+
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            ScanResultBuffer result = new ScanResultBuffer();
+            // every frame here warps the card, so this also covers dmz_transform_card
+            scanAll(handle, cards, result);
+            scanAll(handle, cards, result);
+            long warm = NativeRecognizer.nGetScratchAllocations(handle);
+            for (ByteBuffer frame : cards) {
+                scanAll(handle, Arrays.asList(frame), result);
+                assertTrue(result.isCardDetected());
+                assertEquals(warm, NativeRecognizer.nGetScratchAllocations(handle));
+            }
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    @Test
+    public void repeatedFrames_areSkippedOnlyWhenEnabled() throws Exception {
+        ByteBuffer card = null;
+        for (File dump : corpus()) {
+            ByteBuffer frame = firstFrame(dump);
+            if (cardDetected(frame)) {
+                card = frame;
+                break;
+            }
+        }
+        Assume.assumeTrue("no corpus frame with a card", card != null);
+
+        assertEquals(0, countUnchanged(false, card, 6));
+        // recognized, skipped twice, recognized again, skipped twice
+        assertEquals(4, countUnchanged(true, card, 6));
+    }
+
+    /**
+     * Reads each dump to completion both ways: serially, and split across a detection and a
+     * recognition thread as {@link CardScanner} does. Both must read the same card number.
+     */
+    @Test
+    public void pipelinedStages_matchSerialScan() throws Exception {
+        List<File> dumps = corpus();
+        Assume.assumeTrue(CORPUS_PROPERTY + " not set", !dumps.isEmpty());
+
+        int completed = 0;
+        for (File dump : dumps) {
+            ByteBuffer direct = firstFrame(dump);
+            byte[] frame = new byte[direct.capacity()];
+            direct.rewind();
+            direct.get(frame);
+
+            String serial = readSerially(frame);
+            String pipelined = readPipelined(frame);
+            assertEquals(dump.getName(), serial, pipelined);
+            if (serial != null) {
+                completed++;
+            }
+        }
+        assertTrue("no dump was read to completion", completed > 0);
+    }
+
+    @Test
+    public void paddedPlanes_matchNv21Scan() throws Exception {
+        List<ByteBuffer> inputs = new ArrayList<>();
+        for (File dump : corpus()) {
+            inputs.add(firstFrame(dump));
+        }
+        inputs.add(blankFrame());
+
+        long nv21 = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        long planar = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            ScanResultBuffer nv21Result = new ScanResultBuffer();
+            ScanResultBuffer planarResult = new ScanResultBuffer();
+            for (ByteBuffer frame : inputs) {
+                NativeRecognizer.nScanFrameDirect(nv21, frame, CardImageScanner.FRAME_WIDTH,
+                        CardImageScanner.FRAME_HEIGHT, CardScanner.ORIENTATION_PORTRAIT,
+                        nv21Result.getBuffer(), null, true);
+
+                // separate chroma planes with padded rows, as some Camera2 devices deliver them
+                int width = CardImageScanner.FRAME_WIDTH;
+                int height = CardImageScanner.FRAME_HEIGHT;
+                int yRowStride = width + 64;
+                int chromaRowStride = width / 2 + 32;
+                ByteBuffer y = ByteBuffer.allocateDirect(yRowStride * height);
+                ByteBuffer cb = ByteBuffer.allocateDirect(chromaRowStride * height / 2);
+                ByteBuffer cr = ByteBuffer.allocateDirect(chromaRowStride * height / 2);
+                for (int row = 0; row < height; row++) {
+                    for (int col = 0; col < width; col++) {
+                        y.put(row * yRowStride + col, frame.get(row * width + col));
+                    }
+                }
+                for (int row = 0; row < height / 2; row++) {
+                    for (int col = 0; col < width / 2; col++) {
+                        int crcb = width * height + row * width + col * 2;
+                        cr.put(row * chromaRowStride + col, frame.get(crcb));
+                        cb.put(row * chromaRowStride + col, frame.get(crcb + 1));
+                    }
+                }
+                NativeRecognizer.nScanFramePlanes(planar, y, yRowStride, cb, cr, chromaRowStride,
+                        1, width, height, CardScanner.ORIENTATION_PORTRAIT,
+                        planarResult.getBuffer(), null, true);
+
+                assertEquals(nv21Result.getFlags(), planarResult.getFlags());
+                assertEquals(nv21Result.getFocusScore(), planarResult.getFocusScore());
+            }
+        } finally {
+            NativeRecognizer.nCleanup(nv21);
+            NativeRecognizer.nCleanup(planar);
+        }
+    }
+
+    /**
+     * Prints per-frame scan latency over the corpus, or over blank frames if there is none.
+     */
+    @Test
+    public void benchmark_scanLatency() throws Exception {
+        int frames = Integer.getInteger(BENCHMARK_PROPERTY, 0);
+        Assume.assumeTrue(BENCHMARK_PROPERTY + " not set", frames > 0);
+
+        List<ByteBuffer> inputs = new ArrayList<>();
+        for (File dump : corpus()) {
+            inputs.add(firstFrame(dump));
+        }
+        if (inputs.isEmpty()) {
+            inputs.add(blankFrame());
+        }
+
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        long[] nanos = new long[frames];
+        try {
+            ScanResultBuffer result = new ScanResultBuffer();
+            for (int i = 0; i < frames; i++) {
+                if (i % 100 == 0) {
+                    NativeRecognizer.nResetAnalytics(handle);
+                }
+                ByteBuffer frame = inputs.get(i % inputs.size());
+                long start = System.nanoTime();
+                NativeRecognizer.nScanFrameDirect(handle, frame, CardImageScanner.FRAME_WIDTH,
+                        CardImageScanner.FRAME_HEIGHT, CardScanner.ORIENTATION_PORTRAIT,
+                        result.getBuffer(), null, true);
+                nanos[i] = System.nanoTime() - start;
+            }
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+
+        Arrays.sort(nanos);
+        System.out.println(String.format("scan latency over %d frames: p50 %.2f ms, p95 %.2f ms, "
+                        + "p99 %.2f ms", frames, percentileMillis(nanos, 50),
+                percentileMillis(nanos, 95), percentileMillis(nanos, 99)));
+    }
+
+    /**
+     * Prints scan throughput when frames are replayed through {@link ReplayFrameSource} at full
+     * speed: the corpus in order, or a synthetic card if there is none. Every frame is scanned,
+     * so the same recording takes the same work on every run.
+     */
+    @Test
+    public void benchmark_replayThroughput() throws Exception {
+        final int frames = Integer.getInteger(BENCHMARK_PROPERTY, 0);
+        Assume.assumeTrue(BENCHMARK_PROPERTY + " not set", frames > 0);
+
+        List<File> dumps = corpus();
+        FrameRecording recording = dumps.isEmpty()
+                ? new SyntheticRecording(CardImageScanner.FRAME_WIDTH,
+                        CardImageScanner.FRAME_HEIGHT, frames, 33)
+                : new ImageSequenceRecording(dumps, CardImageScanner.FRAME_WIDTH,
+                        CardImageScanner.FRAME_HEIGHT, 33);
+        final ReplayFrameSource source = new ReplayFrameSource(recording,
+                ReplayFrameSource.Pacing.FULL_SPEED, true);
+        final long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        final ScanResultBuffer result = new ScanResultBuffer();
+        final int[] scanned = new int[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        long elapsed;
+        try {
+            // scanned on the replay thread, which waits for each frame to be released
+            source.open(new FrameSource.Listener() {
+                @Override
+                public void onFrame(Frame frame) {
+                    if (scanned[0] < frames) {
+                        frame.scan(handle, CardScanner.ORIENTATION_PORTRAIT, result.getBuffer(),
+                                null, true);
+                        if (++scanned[0] == frames) {
+                            done.countDown();
+                        }
+                    }
+                    frame.release();
+                }
+
+                @Override
+                public void onAutoFocus(boolean success) {
+                }
+
+                @Override
+                public void onCameraError() {
+                }
+            }, 0);
+            source.startPreview(null);
+            done.await();
+            elapsed = System.nanoTime() - start;
+            source.close();
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+
+        System.out.println(String.format("replay throughput over %d frames: %.1f frames/s",
+                frames, frames * 1e9 / elapsed));
+    }
+
+    private static void scanAll(long handle, List<ByteBuffer> frames, ScanResultBuffer result) {
+        for (ByteBuffer frame : frames) {
+            NativeRecognizer.nScanFrameDirect(handle, frame, CardImageScanner.FRAME_WIDTH,
+                    CardImageScanner.FRAME_HEIGHT, CardScanner.ORIENTATION_PORTRAIT,
+                    result.getBuffer(), null, true);
+        }
+    }
+
+    /**
+     * Scans <code>frame</code> up to {@link CardImageScanner#MAX_STILL_IMAGE_PASSES} times.
+     *
+     * @return the card number, or <code>null</code> if the scan did not complete.
+     */
+    private static String readSerially(byte[] frame) {
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            ScanResultBuffer result = new ScanResultBuffer();
+            for (int pass = 0; pass < CardImageScanner.MAX_STILL_IMAGE_PASSES; pass++) {
+                NativeRecognizer.nScanFrame(handle, frame, CardImageScanner.FRAME_WIDTH,
+                        CardImageScanner.FRAME_HEIGHT, CardScanner.ORIENTATION_PORTRAIT,
+                        result.getBuffer(), null, true);
+                if (result.isComplete()) {
+                    return cardNumber(result);
+                }
+            }
+            return null;
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    /**
+     * Same as {@link #readSerially(byte[])}, but detects on this thread and recognizes on another,
+     * with the frames handed over through alternating pipeline slots.
+     */
+    private static String readPipelined(byte[] frame) throws Exception {
+        final long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        final StageHandoff handoff = new StageHandoff();
+        final String[] number = new String[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread recognizer = new Thread("recognize") {
+            @Override
+            public void run() {
+                try {
+                    ScanResultBuffer result = new ScanResultBuffer();
+                    int slot;
+                    while ((slot = handoff.take()) != StageHandoff.CLOSED) {
+                        NativeRecognizer.nRecognizeFrame(handle, slot, result.getBuffer(), null,
+                                true);
+                        if (result.isComplete()) {
+                            number[0] = cardNumber(result);
+                            handoff.close();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                    handoff.close();
+                }
+            }
+        };
+        recognizer.start();
+        try {
+            ScanResultBuffer result = new ScanResultBuffer();
+            int slot = 0;
+            for (int pass = 0; pass < CardImageScanner.MAX_STILL_IMAGE_PASSES; pass++) {
+                boolean handOff = NativeRecognizer.nDetectFrame(handle, slot, frame,
+                        CardImageScanner.FRAME_WIDTH, CardImageScanner.FRAME_HEIGHT,
+                        CardScanner.ORIENTATION_PORTRAIT, result.getBuffer(), false);
+                if (handOff && result.getFocusScore() >= CardScanner.MIN_FOCUS_SCORE) {
+                    if (!handoff.put(slot)) {
+                        break;
+                    }
+                    slot = (slot + 1) % NativeRecognizer.PIPELINE_SLOTS;
+                }
+            }
+        } finally {
+            // a put only returns once its slot was taken, so this loses no frame
+            handoff.close();
+            recognizer.join();
+        }
+        try {
+            if (failure[0] != null) {
+                throw new AssertionError(failure[0]);
+            }
+            if (number[0] != null) {
+                ScanMetrics metrics = ScanMetrics.fromNative(handle);
+                assertTrue(metrics.getHistogram(ScanMetrics.Stage.FRAME).getCount() > 0);
+            }
+            return number[0];
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    private static String cardNumber(ScanResultBuffer result) {
+        DetectionInfo info = new DetectionInfo();
+        result.decodeInto(info);
+        return info.creditCard().cardNumber;
+    }
+
+    private static boolean cardDetected(ByteBuffer frame) {
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            ScanResultBuffer result = new ScanResultBuffer();
+            scanAll(handle, Arrays.asList(frame), result);
+            return result.isCardDetected();
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    /**
+     * @return how many of <code>scans</code> scans of the same frame were reported unchanged.
+     */
+    private static int countUnchanged(boolean skipSimilar, ByteBuffer frame, int scans) {
+        long handle = NativeRecognizer.nSetup(false, CardScanner.MIN_FOCUS_SCORE, -1);
+        try {
+            NativeRecognizer.nSetSkipSimilarFrames(handle, skipSimilar);
+            ScanResultBuffer result = new ScanResultBuffer();
+            int unchanged = 0;
+            for (int i = 0; i < scans; i++) {
+                scanAll(handle, Arrays.asList(frame), result);
+                if (result.isUnchanged()) {
+                    unchanged++;
+                }
+            }
+            return unchanged;
+        } finally {
+            NativeRecognizer.nCleanup(handle);
+        }
+    }
+
+    private static ByteBuffer blankFrame() {
+        ByteBuffer frame = new DirectFramePool(CardImageScanner.FRAME_WIDTH,
+                CardImageScanner.FRAME_HEIGHT, 1).acquire();
+        int lumaSize = CardImageScanner.FRAME_WIDTH * CardImageScanner.FRAME_HEIGHT;
+        for (int i = 0; i < frame.capacity(); i++) {
+            frame.put(i, (byte) (i < lumaSize ? 16 : 128));
+        }
+        return frame;
+    }
+
+    private static ByteBuffer firstFrame(File dump) throws Exception {
+        ByteBuffer frame = new DirectFramePool(CardImageScanner.FRAME_WIDTH,
+                CardImageScanner.FRAME_HEIGHT, 1).acquire();
+        FileInputStream in = new FileInputStream(dump);
+        try {
+            while (frame.hasRemaining() && in.getChannel().read(frame) >= 0) {
+                // fill the frame
+            }
+        } finally {
+            in.close();
+        }
+        return frame;
+    }
+
+    private static List<File> corpus() {
+        String dir = System.getProperty(CORPUS_PROPERTY);
+        if (dir == null || dir.length() == 0) {
+            return new ArrayList<>();
+        }
+        File[] files = new File(dir).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".nv21") && expectedNumber(file) != null;
+            }
+        });
+        List<File> dumps = new ArrayList<>();
+        if (files != null) {
+            Arrays.sort(files);
+            dumps.addAll(Arrays.asList(files));
+        }
+        return dumps;
+    }
+
+    private static String expectedNumber(File dump) {
+        Matcher m = EXPECTED_NUMBER.matcher(dump.getName());
+        return m.find() ? m.group(1) : null;
+    }
+
+    private static double percentileMillis(long[] sorted, int percentile) {
+        int index = Math.min(sorted.length - 1, sorted.length * percentile / 100);
+        return sorted[index] / 1e6;
+    }
+}
@@ -0,0 +1,84 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ReplayFrameSourceTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int NUM_FRAMES = 10;
+
+    private static class Recorder implements FrameSource.Listener {
+        final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onFrame(Frame frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void onAutoFocus(boolean success) {
+        }
+
+        @Override
+        public void onCameraError() {
+        }
+    }
+
+    @Test
+    public void fullSpeed_deliversEveryFrameInOrder() throws Exception {
+        ReplayFrameSource source = new ReplayFrameSource(
+                new SyntheticRecording(WIDTH, HEIGHT, NUM_FRAMES, 33),
+                ReplayFrameSource.Pacing.FULL_SPEED, false);
+        SyntheticRecording expected = new SyntheticRecording(WIDTH, HEIGHT, NUM_FRAMES, 33);
+        byte[] expectedFrame = new byte[DirectFramePool.frameSize(WIDTH, HEIGHT)];
+        Recorder recorder = new Recorder();
+
+        assertTrue(source.open(recorder, 0));
+        assertTrue(source.startPreview(null));
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            Frame frame = recorder.frames.poll(1, TimeUnit.SECONDS);
+            assertTrue(expected.advance());
+            expected.read(expectedFrame);
+            assertTrue(Arrays.equals(expectedFrame, frame.getData()));
+
+            // the next frame waits for this one
+            assertNull(recorder.frames.poll(50, TimeUnit.MILLISECONDS));
+            frame.release();
+        }
+        assertNull(recorder.frames.poll(100, TimeUnit.MILLISECONDS));
+        source.close();
+
+        assertEquals(NUM_FRAMES, source.getFramesDelivered());
+        assertEquals(0, source.getFramesDropped());
+    }
+
+    @Test
+    public void recorded_dropsFramesWhileListenerHoldsEveryBuffer() throws Exception {
+        ReplayFrameSource source = new ReplayFrameSource(
+                new SyntheticRecording(WIDTH, HEIGHT, 1, 5),
+                ReplayFrameSource.Pacing.RECORDED, true);
+        Recorder recorder = new Recorder();
+
+        source.open(recorder, 0);
+        source.startPreview(null);
+        // never release
+        Thread.sleep(200);
+        source.close();
+
+        assertEquals(2, source.getFramesDelivered());
+        assertTrue(source.getFramesDropped() > 0);
+        assertEquals(2, recorder.frames.size());
+    }
+}